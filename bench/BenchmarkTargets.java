@@ -0,0 +1,70 @@
+import pzsaver.bench.PZSaverTargets;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+
+// Gives the JMH benchmarks in pzsaver.bench access to PZSaver's default-package classes
+public class BenchmarkTargets implements PZSaverTargets {
+    @Override
+    public Operation backup(File saveDir, File backupDir, int threads) {
+        return newSaver(saveDir, backupDir, threads, false)::createBackup;
+    }
+
+    @Override
+    public Operation restore(File saveDir, File backupDir, int threads) {
+        return newSaver(saveDir, backupDir, threads, false)::restoreBackup;
+    }
+
+    @Override
+    public Operation shallowTest(File saveDir, File backupDir, int threads) {
+        PZSaver saver = newSaver(saveDir, backupDir, threads, false);
+        return () -> saver.runShallowTest(saveDir, backupDir);
+    }
+
+    @Override
+    public Operation deepTest(File saveDir, File backupDir, int threads, boolean fullVerify) {
+        PZSaver saver = newSaver(saveDir, backupDir, threads, fullVerify);
+        return () -> saver.runDeepTest(saveDir, backupDir);
+    }
+
+    @Override
+    public void copyFile(Path source, Path target) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(source, BasicFileAttributes.class);
+        FileCopier.copy(source, target, attrs.size(), attrs.lastModifiedTime(), null);
+    }
+
+    @Override
+    public long pack(Path sourceDir, List<Path> files, File packDir, int level) throws IOException {
+        PackStore store = PackStore.load(packDir);
+        store.setCompressionLevel(level);
+        for (Path file : files) {
+            store.put(relativePath(sourceDir, file), store.append(file, Files.size(file), Files.getLastModifiedTime(file).toMillis(), null));
+        }
+        store.save();
+        return store.getLiveBytes();
+    }
+
+    @Override
+    public Operation extract(File packDir, Path sourceDir, List<Path> files, Path restoreDir) throws IOException {
+        PackStore store = PackStore.load(packDir);
+        return () -> {
+            for (Path file : files) {
+                String relativePath = relativePath(sourceDir, file);
+                store.extract(store.get(relativePath), restoreDir.resolve(relativePath), null);
+            }
+        };
+    }
+
+    private static PZSaver newSaver(File saveDir, File backupDir, int threads, boolean fullVerify) {
+        return new PZSaver(saveDir.getPath(), backupDir.getPath(), false, true, false, threads, BackupFormat.DIRECTORY, 0, false,
+                FileVerifier.Algorithm.CRC32C, fullVerify, false, null, -1, 0, false, false, null);
+    }
+
+    private static String relativePath(Path sourceDir, Path file) {
+        return sourceDir.relativize(file).toString().replace(File.separatorChar, '/');
+    }
+}
@@ -0,0 +1,115 @@
+package pzsaver.bench;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Measures pack backups without compression (level -1) and at several Deflate levels: time to pack a SaveGenerator
+// save (whose chunk-like data actually compresses) and time to extract everything again. The resulting pack size
+// is printed when each trial ends.
+//
+// Usage: gradle jmh --args='CompressionBenchmark -p level=-1,6'
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1, time = 10)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+public class CompressionBenchmark {
+    // Directory for the source, pack and restore; empty for a temporary directory that is deleted afterwards
+    @Param("")
+    public String workDir;
+
+    @Param("5000")
+    public int chunkFiles;
+
+    @Param({"-1", "1", "3", "6", "9"})
+    public int level;
+
+    private Path workPath;
+    private Path sourceDir;
+    private Path packDir;
+    private Path restoreDir;
+    private List<Path> files;
+    private long totalBytes;
+    private PZSaverTargets targets;
+    private PZSaverTargets.Operation extract;
+    private long packedBytes;
+
+    // Starts every pack run from an empty pack directory
+    @State(Scope.Thread)
+    public static class EmptyPack {
+        @Setup(Level.Invocation)
+        public void prepare(CompressionBenchmark benchmark) throws IOException {
+            FileUtils.deleteDirectory(benchmark.packDir.toFile());
+        }
+    }
+
+    // Starts every extract run from an empty restore directory
+    @State(Scope.Thread)
+    public static class EmptyRestore {
+        @Setup(Level.Invocation)
+        public void prepare(CompressionBenchmark benchmark) throws IOException {
+            FileUtils.deleteDirectory(benchmark.restoreDir.toFile());
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        workPath = workDir.isEmpty() ? Files.createTempDirectory("pzsaver-bench") : Path.of(workDir);
+        sourceDir = workPath.resolve("source");
+        packDir = workPath.resolve("pack");
+        restoreDir = workPath.resolve("restore");
+        files = new SaveGenerator(42).generate(sourceDir, chunkFiles);
+        totalBytes = SaveGenerator.totalSize(files);
+
+        targets = PZSaverTargets.get();
+
+        // The extract benchmark reads the pack written here
+        FileUtils.deleteDirectory(packDir.toFile());
+        packedBytes = targets.pack(sourceDir, files, packDir.toFile(), level);
+        extract = targets.extract(packDir.toFile(), sourceDir, files, restoreDir);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        System.out.printf("%s: pack size %.1f MB (%.1f%% of %.1f MB)%n", level < 0 ? "raw" : "level " + level,
+                packedBytes / (1024.0 * 1024.0), 100.0 * packedBytes / totalBytes, totalBytes / (1024.0 * 1024.0));
+
+        if (workDir.isEmpty()) {
+            FileUtils.deleteDirectory(workPath.toFile());
+        } else {
+            FileUtils.deleteDirectory(packDir.toFile());
+            FileUtils.deleteDirectory(restoreDir.toFile());
+        }
+    }
+
+    @Benchmark
+    public void pack(EmptyPack empty, SaveThroughput throughput) throws IOException {
+        packedBytes = targets.pack(sourceDir, files, packDir.toFile(), level);
+        throughput.add(files.size(), totalBytes);
+    }
+
+    @Benchmark
+    public void extract(EmptyRestore empty, SaveThroughput throughput) throws IOException {
+        extract.run();
+        throughput.add(files.size(), totalBytes);
+    }
+}
@@ -0,0 +1,87 @@
+package pzsaver.bench;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Compares FileUtils.copyFile with FileCopier over a SaveGenerator save: many tiny map chunks, some mid-sized
+// chunk data and a few large databases. Each operation copies the whole save into an empty directory.
+//
+// Usage: gradle jmh --args='CopyBenchmark -p chunkFiles=5000'
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class CopyBenchmark {
+    // Directory for the source and copies; empty for a temporary directory that is deleted afterwards
+    @Param("")
+    public String workDir;
+
+    @Param("5000")
+    public int chunkFiles;
+
+    private Path workPath;
+    private Path sourceDir;
+    private Path targetDir;
+    private List<Path> files;
+    private long totalBytes;
+    private PZSaverTargets targets;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        workPath = workDir.isEmpty() ? Files.createTempDirectory("pzsaver-bench") : Path.of(workDir);
+        sourceDir = workPath.resolve("source");
+        targetDir = workPath.resolve("target");
+        files = new SaveGenerator(42).generate(sourceDir, chunkFiles);
+        totalBytes = SaveGenerator.totalSize(files);
+        targets = PZSaverTargets.get();
+    }
+
+    // Starts every copy from an empty target with the save's directories in place
+    @Setup(Level.Invocation)
+    public void emptyTarget() throws IOException {
+        FileUtils.deleteDirectory(targetDir.toFile());
+        Files.createDirectories(targetDir.resolve("map"));
+        Files.createDirectories(targetDir.resolve("chunkdata"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(workDir.isEmpty() ? workPath.toFile() : targetDir.toFile());
+    }
+
+    @Benchmark
+    public void commonsIo(SaveThroughput throughput) throws IOException {
+        for (Path file : files) {
+            FileUtils.copyFile(file.toFile(), targetDir.resolve(sourceDir.relativize(file)).toFile());
+        }
+        throughput.add(files.size(), totalBytes);
+    }
+
+    @Benchmark
+    public void fileCopier(SaveThroughput throughput) throws IOException {
+        for (Path file : files) {
+            targets.copyFile(file, targetDir.resolve(sourceDir.relativize(file)));
+        }
+        throughput.add(files.size(), totalBytes);
+    }
+}
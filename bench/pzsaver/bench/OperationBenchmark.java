@@ -0,0 +1,170 @@
+package pzsaver.bench;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Times PZSaver's main operations end to end on a SaveGenerator save: full backup, differential backup after a share
+// of the files changed, full restore into an empty directory, and the shallow, deep and cached deep tests.
+// Every operation processes the whole save; SaveThroughput adds save files and save megabytes per second.
+//
+// Usage: gradle jmh --args='OperationBenchmark -p chunkFiles=20000 -p changedPercent=5 -p threads=0'
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1, time = 10)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+public class OperationBenchmark {
+    // Directory for the save, backup and restore; empty for a temporary directory that is deleted afterwards
+    @Param("")
+    public String workDir;
+
+    @Param("20000")
+    public int chunkFiles;
+
+    @Param("5")
+    public double changedPercent;
+
+    @Param("0")
+    public int threads;
+
+    private Path workPath;
+    private File saveDir;
+    private File backupDir;
+    private File restoreDir;
+    private SaveGenerator generator;
+    private List<Path> files;
+    private long totalBytes;
+    private PZSaverTargets.Operation backup;
+    private PZSaverTargets.Operation restore;
+    private PZSaverTargets.Operation shallowTest;
+    private PZSaverTargets.Operation deepTest;
+    private PZSaverTargets.Operation deepTestCached;
+
+    // Empties the backup directory before each full backup
+    @State(Scope.Thread)
+    public static class EmptyBackup {
+        @Setup(Level.Invocation)
+        public void prepare(OperationBenchmark benchmark) throws IOException {
+            FileUtils.deleteDirectory(benchmark.backupDir);
+        }
+    }
+
+    // Rewrites changedPercent of the save before each differential backup
+    @State(Scope.Thread)
+    public static class ChangedSave {
+        @Setup(Level.Invocation)
+        public void prepare(OperationBenchmark benchmark) throws IOException {
+            benchmark.generator.modify(benchmark.files, benchmark.changedPercent / 100);
+        }
+    }
+
+    // Empties the restore directory before each restore
+    @State(Scope.Thread)
+    public static class EmptyRestore {
+        @Setup(Level.Invocation)
+        public void prepare(OperationBenchmark benchmark) throws IOException {
+            FileUtils.deleteDirectory(benchmark.restoreDir);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        workPath = workDir.isEmpty() ? Files.createTempDirectory("pzsaver-bench") : Path.of(workDir);
+        saveDir = workPath.resolve("Dan").toFile();
+        backupDir = workPath.resolve("Dan-1").toFile();
+        restoreDir = workPath.resolve("restore").toFile();
+        generator = new SaveGenerator(42);
+        files = generator.generate(saveDir.toPath(), chunkFiles);
+        totalBytes = SaveGenerator.totalSize(files);
+
+        PZSaverTargets targets = PZSaverTargets.get();
+        backup = targets.backup(saveDir, backupDir, threads);
+        restore = targets.restore(restoreDir, backupDir, threads);
+        shallowTest = targets.shallowTest(saveDir, backupDir, threads);
+        deepTest = targets.deepTest(saveDir, backupDir, threads, true);
+        deepTestCached = targets.deepTest(saveDir, backupDir, threads, false);
+
+        // Every benchmark but the full backup starts from an up-to-date backup
+        quietly(backup);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (workDir.isEmpty()) {
+            FileUtils.deleteDirectory(workPath.toFile());
+        } else {
+            FileUtils.deleteDirectory(backupDir);
+            FileUtils.deleteDirectory(restoreDir);
+        }
+    }
+
+    @Benchmark
+    public void fullBackup(EmptyBackup empty, SaveThroughput throughput) throws IOException {
+        quietly(backup);
+        throughput.add(files.size(), totalBytes);
+    }
+
+    @Benchmark
+    public void differentialBackup(ChangedSave changed, SaveThroughput throughput) throws IOException {
+        quietly(backup);
+        throughput.add(files.size(), totalBytes);
+    }
+
+    @Benchmark
+    public void restore(EmptyRestore empty, SaveThroughput throughput) throws IOException {
+        quietly(restore);
+        throughput.add(files.size(), totalBytes);
+    }
+
+    @Benchmark
+    public void shallowTest(SaveThroughput throughput) throws IOException {
+        quietly(shallowTest);
+        throughput.add(files.size(), totalBytes);
+    }
+
+    @Benchmark
+    public void deepTest(SaveThroughput throughput) throws IOException {
+        quietly(deepTest);
+        throughput.add(files.size(), totalBytes);
+    }
+
+    // Reads only what the digest cache cannot vouch for; the warmup run fills the cache
+    @Benchmark
+    public void deepTestCached(SaveThroughput throughput) throws IOException {
+        quietly(deepTestCached);
+        throughput.add(files.size(), totalBytes);
+    }
+
+    // PZSaver reports progress on System.out; keep it out of the JMH output
+    private static void quietly(PZSaverTargets.Operation operation) throws IOException {
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            operation.run();
+        } finally {
+            System.setOut(console);
+        }
+    }
+}
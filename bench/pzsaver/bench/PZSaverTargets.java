@@ -0,0 +1,42 @@
+package pzsaver.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+// The PZSaver operations the benchmarks time. PZSaver's classes live in the default package, which code in a named
+// package cannot refer to, while JMH only accepts benchmarks in a named package. BenchmarkTargets implements this
+// interface from the default package and get() looks it up by name.
+public interface PZSaverTargets {
+    interface Operation {
+        void run() throws IOException;
+    }
+
+    static PZSaverTargets get() {
+        try {
+            return (PZSaverTargets) Class.forName("BenchmarkTargets").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("BenchmarkTargets is missing from the classpath", e);
+        }
+    }
+
+    // Directory-format operations on saveDir and backupDir; threads 0 picks the default worker count
+    Operation backup(File saveDir, File backupDir, int threads);
+
+    Operation restore(File saveDir, File backupDir, int threads);
+
+    Operation shallowTest(File saveDir, File backupDir, int threads);
+
+    // With fullVerify every file is read again; without it the deep test trusts its digest cache
+    Operation deepTest(File saveDir, File backupDir, int threads, boolean fullVerify);
+
+    // Copies a file with FileCopier, keeping its mtime
+    void copyFile(Path source, Path target) throws IOException;
+
+    // Packs the files into a new pack store in an empty packDir at the given compression level (-1 for none); returns the pack's live bytes
+    long pack(Path sourceDir, List<Path> files, File packDir, int level) throws IOException;
+
+    // Loads a pack store and returns an operation that extracts the files from it into restoreDir
+    Operation extract(File packDir, Path sourceDir, List<Path> files, Path restoreDir) throws IOException;
+}
@@ -0,0 +1,96 @@
+package pzsaver.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+// Builds a synthetic Project Zomboid save for the benchmarks: a map folder with many small map_X_Y.bin chunk files,
+// some larger chunkdata files and a few big databases. File contents are runs of repeated 4-byte ids with some noise,
+// roughly as compressible as real chunk data. The same seed and size always give the same save.
+public class SaveGenerator {
+    private final Random random;
+
+    public SaveGenerator(long seed) {
+        this.random = new Random(seed);
+    }
+
+    // Writes a save with the given number of map chunk files and returns all generated files.
+    // Files that already exist with the right size are kept, so repeated runs reuse the save on disk.
+    public List<Path> generate(Path saveDir, int chunkFiles) throws IOException {
+        List<Path> files = new ArrayList<>();
+        Path mapDir = saveDir.resolve("map");
+        Files.createDirectories(mapDir);
+        int width = (int) Math.ceil(Math.sqrt(chunkFiles));
+        for (int i = 0; i < chunkFiles; i++) {
+            files.add(writeFile(mapDir.resolve("map_" + (i % width) + "_" + (i / width) + ".bin"), 512 + random.nextInt(4096)));
+        }
+        Path chunkDataDir = saveDir.resolve("chunkdata");
+        Files.createDirectories(chunkDataDir);
+        for (int i = 0; i < Math.max(1, chunkFiles / 100); i++) {
+            files.add(writeFile(chunkDataDir.resolve("chunkdata_" + i + ".bin"), 32 * 1024 + random.nextInt(256 * 1024)));
+        }
+        files.add(writeFile(saveDir.resolve("players.db"), 64 << 20));
+        files.add(writeFile(saveDir.resolve("vehicles.db"), 32 << 20));
+        files.add(writeFile(saveDir.resolve("map_t.bin"), 8 << 20));
+        return files;
+    }
+
+    // Rewrites a random fraction of the files with new content and a newer mtime, like an in-game save would.
+    // Returns the number of bytes rewritten.
+    public long modify(List<Path> files, double fraction) throws IOException {
+        List<Path> chosen = new ArrayList<>(files);
+        Collections.shuffle(chosen, random);
+        long bytes = 0;
+        FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+        for (Path file : chosen.subList(0, (int) Math.round(files.size() * fraction))) {
+            int size = (int) Files.size(file);
+            Files.write(file, generateContent(size));
+            Files.setLastModifiedTime(file, now);
+            bytes += size;
+        }
+        return bytes;
+    }
+
+    // Total size of the given files in bytes
+    public static long totalSize(List<Path> files) throws IOException {
+        long bytes = 0;
+        for (Path file : files) {
+            bytes += Files.size(file);
+        }
+        return bytes;
+    }
+
+    private Path writeFile(Path file, int size) throws IOException {
+        if (!Files.exists(file) || Files.size(file) != size) {
+            Files.write(file, generateContent(size));
+        }
+        return file;
+    }
+
+    private byte[] generateContent(int size) {
+        byte[] data = new byte[size];
+        int position = 0;
+        while (position < size) {
+            if (random.nextInt(4) == 0) {
+                int noise = Math.min(size - position, 1 + random.nextInt(32));
+                byte[] bytes = new byte[noise];
+                random.nextBytes(bytes);
+                System.arraycopy(bytes, 0, data, position, noise);
+                position += noise;
+            } else {
+                int id = random.nextInt(64);
+                int run = Math.min(size - position, 4 * (1 + random.nextInt(64)));
+                for (int j = 0; j < run; j++) {
+                    data[position + j] = (byte) (j % 4 == 3 ? id : 0);
+                }
+                position += run;
+            }
+        }
+        return data;
+    }
+}
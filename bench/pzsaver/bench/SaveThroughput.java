@@ -0,0 +1,27 @@
+package pzsaver.bench;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// Extra JMH results for the benchmarks that process a whole save per operation: next to the operations per second,
+// JMH reports the counters as save files per second (:files) and save megabytes per second (:megabytes).
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class SaveThroughput {
+    public double files;
+    public double megabytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        files = 0;
+        megabytes = 0;
+    }
+
+    public void add(int fileCount, long byteCount) {
+        files += fileCount;
+        megabytes += byteCount / (1024.0 * 1024.0);
+    }
+}
@@ -0,0 +1,204 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Index of the ordinal backups of one save (Dan-1, Dan-2, ...): number, time of the last backup into it, size, file
+// count and whether it shares files with other backups through hard links. It lives next to the backups as
+// <save>-backups.tsv, so finding the latest or next backup is a lookup instead of probing every directory, and prune
+// can pick expired backups without walking them. A missing or unreadable catalog is rebuilt from one directory listing,
+// from the directories that hold a backup manifest.
+public class BackupCatalog {
+    private static final String CATALOG_SUFFIX = "-backups.tsv";
+    private static final String PRUNING_SUFFIX = ".pruning";
+    private static final String HEADER = "#PZSaver catalog v1";
+
+    public static class Entry {
+        public final int ordinal;
+        public final long timestamp;
+        public final long size;
+        public final int files;
+        public final boolean linked;
+
+        public Entry(int ordinal, long timestamp, long size, int files, boolean linked) {
+            this.ordinal = ordinal;
+            this.timestamp = timestamp;
+            this.size = size;
+            this.files = files;
+            this.linked = linked;
+        }
+    }
+
+    private final String baseSavePath;
+    private final File catalogFile;
+    private final TreeMap<Integer, Entry> entries = new TreeMap<>();
+
+    private BackupCatalog(String baseSavePath) {
+        this.baseSavePath = baseSavePath;
+        this.catalogFile = new File(baseSavePath + CATALOG_SUFFIX);
+    }
+
+    // Loads the catalog of a save, rebuilding it if it is missing, unreadable or names a latest backup that is gone
+    public static BackupCatalog load(String baseSavePath) {
+        BackupCatalog catalog = new BackupCatalog(baseSavePath);
+        if (!catalog.read() || (!catalog.entries.isEmpty() && !catalog.getDirectory(catalog.entries.lastKey()).isDirectory())) {
+            catalog.rebuild();
+        }
+        return catalog;
+    }
+
+    // Returns the ordinal of a backup directory of this save, or 0 if it is not one (e.g. a custom backup path)
+    public int ordinalOf(File backupDir) {
+        File baseDir = new File(baseSavePath).getAbsoluteFile();
+        File dir = backupDir.getAbsoluteFile();
+        if (dir.getParentFile() == null || !dir.getParentFile().equals(baseDir.getParentFile())) {
+            return 0;
+        }
+        Matcher matcher = ordinalPattern(baseDir.getName()).matcher(dir.getName());
+        return matcher.matches() ? Integer.parseInt(matcher.group(1)) : 0;
+    }
+
+    public File getDirectory(int ordinal) {
+        return new File(baseSavePath + "-" + ordinal);
+    }
+
+    // Where a backup is moved while prune deletes it, so that a half-deleted backup never looks like a valid one
+    public File getPruningDirectory(int ordinal) {
+        File baseDir = new File(baseSavePath).getAbsoluteFile();
+        return new File(baseDir.getParentFile(), "." + baseDir.getName() + "-" + ordinal + PRUNING_SUFFIX);
+    }
+
+    // Backups an interrupted prune left behind
+    public File[] findPruningDirectories() {
+        File baseDir = new File(baseSavePath).getAbsoluteFile();
+        String prefix = "." + baseDir.getName() + "-";
+        File[] dirs = baseDir.getParentFile() != null ? baseDir.getParentFile().listFiles(dir -> dir.isDirectory()
+                && dir.getName().startsWith(prefix) && dir.getName().endsWith(PRUNING_SUFFIX)) : null;
+        return dirs != null ? dirs : new File[0];
+    }
+
+    // Highest ordinal in the catalog, or 0 if there are no backups yet
+    public int getLatestOrdinal() {
+        return entries.isEmpty() ? 0 : entries.lastKey();
+    }
+
+    // The ordinal after the latest one; directories made without the catalog (by older versions) are stepped over
+    public int getNextOrdinal() {
+        int next = getLatestOrdinal() + 1;
+        while (getDirectory(next).exists()) {
+            next++;
+        }
+        return next;
+    }
+
+    // Entries in ascending ordinal order
+    public Map<Integer, Entry> getEntries() {
+        return Collections.unmodifiableMap(entries);
+    }
+
+    // Builds the catalog entry of a backup directory from its manifest
+    public static Entry describe(int ordinal, File backupDir, BackupManifest manifest, long timestamp) {
+        long size = 0;
+        int files = 0;
+        for (BackupManifest.Entry entry : manifest.getEntries().values()) {
+            if (!entry.isDirectory()) {
+                size += entry.size;
+                files++;
+            }
+        }
+        return new Entry(ordinal, timestamp, size, files, BackupManifest.isHardLinked(backupDir));
+    }
+
+    public void put(Entry entry) {
+        entries.put(entry.ordinal, entry);
+    }
+
+    public void remove(int ordinal) {
+        entries.remove(ordinal);
+    }
+
+    // Writes the catalog to a temporary file and moves it over the old one
+    public void save() throws IOException {
+        Path catalogPath = catalogFile.toPath();
+        Path tempPath = catalogPath.resolveSibling(catalogFile.getName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.newLine();
+            for (Entry entry : entries.values()) {
+                writer.write(entry.ordinal + "\t" + entry.timestamp + "\t" + entry.size + "\t" + entry.files + "\t" + (entry.linked ? 1 : 0));
+                writer.newLine();
+            }
+        }
+
+        try {
+            Files.move(tempPath, catalogPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempPath, catalogPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // Helper to read the catalog file; returns false if there is none or it cannot be trusted
+    private boolean read() {
+        if (!catalogFile.isFile()) {
+            return false;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(catalogFile.toPath(), StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            if (!HEADER.equals(line)) {
+                throw new IOException("Unknown catalog format: " + line);
+            }
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length != 5) {
+                    throw new IOException("Malformed catalog line: " + line);
+                }
+                put(new Entry(Integer.parseInt(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2]), Integer.parseInt(fields[3]), fields[4].equals("1")));
+            }
+            return true;
+        } catch (IOException | NumberFormatException e) {
+            System.out.println("Warning: rebuilding unreadable backup catalog " + catalogFile.getPath() + " (" + e.getMessage() + ")");
+            entries.clear();
+            return false;
+        }
+    }
+
+    // Helper to recreate the catalog from the backup directories next to the save and their manifests
+    private void rebuild() {
+        entries.clear();
+        File baseDir = new File(baseSavePath).getAbsoluteFile();
+        File[] siblings = baseDir.getParentFile() != null ? baseDir.getParentFile().listFiles(File::isDirectory) : null;
+        if (siblings == null) {
+            return;
+        }
+        Pattern pattern = ordinalPattern(baseDir.getName());
+        for (File dir : siblings) {
+            Matcher matcher = pattern.matcher(dir.getName());
+            // Only directories PZSaver wrote a manifest into: a save that merely has a matching name (World-2 next to
+            // World) must never become a backup that the next run writes into or prune deletes
+            if (matcher.matches() && BackupManifest.exists(dir)) {
+                // The metadata directory changes whenever a backup saves its manifest, unlike the backup directory itself
+                long timestamp = new File(dir, BackupManifest.METADATA_DIR).lastModified();
+                put(describe(Integer.parseInt(matcher.group(1)), dir, BackupManifest.load(dir), timestamp > 0 ? timestamp : dir.lastModified()));
+            }
+        }
+        try {
+            save();
+        } catch (IOException e) {
+            System.out.println("Warning: could not write backup catalog " + catalogFile.getPath() + " (" + e.getMessage() + ")");
+        }
+    }
+
+    private static Pattern ordinalPattern(String baseName) {
+        return Pattern.compile(Pattern.quote(baseName) + "-(\\d{1,9})");
+    }
+}
@@ -0,0 +1,18 @@
+// On-disk layout of a backup target
+public enum BackupFormat {
+    // Plain copy of the save directory (Dan-1, Dan-2, ...)
+    DIRECTORY,
+    // Content-addressed object store shared by all snapshots (Dan-store)
+    STORE,
+    // Small files packed into a few large pack files with an index (Dan-pack)
+    PACK;
+
+    public static BackupFormat fromName(String name) {
+        for (BackupFormat format : values()) {
+            if (format.name().equalsIgnoreCase(name)) {
+                return format;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,180 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Compact record of every file in a backup directory (relative path, size, mtime and an optional hash).
+// It is loaded once per run so the differential backup can decide what to copy without stat-ing the backup tree.
+public class BackupManifest {
+    // Directory inside each backup that holds PZSaver's own bookkeeping; it is never copied or restored
+    public static final String METADATA_DIR = ".pzsaver";
+
+    private static final String MANIFEST_FILE = "manifest.tsv";
+    private static final String DIGESTS_FILE = "digests.tsv";
+    private static final String HARD_LINKED_FILE = "hardlinked";
+    private static final String IN_PROGRESS_SUFFIX = ".inprogress";
+    private static final String HEADER = "#PZSaver manifest v1";
+
+    public static class Entry {
+        public final long size;
+        public final long lastModified;
+        public final String hash;
+
+        public Entry(long size, long lastModified, String hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+
+        // Directories are recorded with a negative size so empty ones survive a snapshot restore
+        public boolean isDirectory() {
+            return size < 0;
+        }
+    }
+
+    private final File manifestFile;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private boolean stale;
+
+    private BackupManifest(File manifestFile) {
+        this.manifestFile = manifestFile;
+    }
+
+    // Loads the manifest of a backup directory
+    public static BackupManifest load(File backupDir) {
+        return loadFile(new File(new File(backupDir, METADATA_DIR), MANIFEST_FILE));
+    }
+
+    // Loads the deep test's digest cache of a backup directory; same format, with the hash column always filled in
+    public static BackupManifest loadDigests(File backupDir) {
+        return loadFile(new File(new File(backupDir, METADATA_DIR), DIGESTS_FILE));
+    }
+
+    // Records that a backup directory shares files with another backup through hard links, so nothing may write into them
+    public static void markHardLinked(File backupDir) throws IOException {
+        Path marker = new File(new File(backupDir, METADATA_DIR), HARD_LINKED_FILE).toPath();
+        Files.createDirectories(marker.getParent());
+        if (!Files.exists(marker)) {
+            Files.createFile(marker);
+        }
+    }
+
+    // True if PZSaver has saved a manifest in the directory, i.e. it is one of its directory backups
+    public static boolean exists(File backupDir) {
+        return new File(new File(backupDir, METADATA_DIR), MANIFEST_FILE).isFile();
+    }
+
+    public static boolean isHardLinked(File backupDir) {
+        return new File(new File(backupDir, METADATA_DIR), HARD_LINKED_FILE).exists();
+    }
+
+    // Loads a manifest file. A missing, unreadable or interrupted manifest is returned empty and stale.
+    public static BackupManifest loadFile(File manifestFile) {
+        BackupManifest manifest = new BackupManifest(manifestFile);
+        if (!manifestFile.isFile() || manifest.getInProgressFile().exists()) {
+            manifest.stale = true;
+            return manifest;
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(manifestFile.toPath(), StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            if (!HEADER.equals(line)) {
+                throw new IOException("Unknown manifest format: " + line);
+            }
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 4);
+                if (fields.length != 4) {
+                    throw new IOException("Malformed manifest line: " + line);
+                }
+                String hash = fields[2].isEmpty() ? null : fields[2];
+                manifest.entries.put(fields[3], new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]), hash));
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.out.println("Warning: ignoring unreadable manifest " + manifestFile.getPath() + " (" + e.getMessage() + ")");
+            manifest.entries.clear();
+            manifest.stale = true;
+        }
+        return manifest;
+    }
+
+    // Deletes a manifest file together with its in-progress marker
+    public static void deleteFile(File manifestFile) throws IOException {
+        Files.deleteIfExists(manifestFile.toPath());
+        Files.deleteIfExists(new File(manifestFile.getParentFile(), manifestFile.getName() + IN_PROGRESS_SUFFIX).toPath());
+    }
+
+    // A stale manifest cannot be trusted; callers must fall back to comparing against the files on disk
+    public boolean isStale() {
+        return stale;
+    }
+
+    public Entry get(String relativePath) {
+        return entries.get(relativePath);
+    }
+
+    public void put(String relativePath, long size, long lastModified, String hash) {
+        entries.put(relativePath, new Entry(size, lastModified, hash));
+    }
+
+    public void remove(String relativePath) {
+        entries.remove(relativePath);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public Map<String, Entry> getEntries() {
+        return Collections.unmodifiableMap(entries);
+    }
+
+    // Flags the manifest as out of date until save() succeeds, so an interrupted run is detected on the next load
+    public void markInProgress() throws IOException {
+        File marker = getInProgressFile();
+        Files.createDirectories(marker.getParentFile().toPath());
+        if (!marker.exists()) {
+            Files.createFile(marker.toPath());
+        }
+    }
+
+    // Writes the manifest to a temporary file and moves it over the old one, then clears the in-progress marker
+    public void save() throws IOException {
+        Path manifestPath = manifestFile.toPath();
+        Files.createDirectories(manifestPath.getParent());
+        Path tempPath = manifestPath.resolveSibling(manifestFile.getName() + ".tmp");
+
+        List<String> paths = new ArrayList<>(entries.keySet());
+        paths.sort(null);
+        try (BufferedWriter writer = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.newLine();
+            for (String path : paths) {
+                Entry entry = entries.get(path);
+                writer.write(entry.size + "\t" + entry.lastModified + "\t" + (entry.hash != null ? entry.hash : "") + "\t" + path);
+                writer.newLine();
+            }
+        }
+
+        try {
+            Files.move(tempPath, manifestPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempPath, manifestPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.deleteIfExists(getInProgressFile().toPath());
+        stale = false;
+    }
+
+    private File getInProgressFile() {
+        return new File(manifestFile.getParentFile(), manifestFile.getName() + IN_PROGRESS_SUFFIX);
+    }
+}
@@ -0,0 +1,335 @@
+import org.apache.commons.io.FileUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Backs up every save under a Saves directory in one process. Saves are grouped into lanes by the storage device they
+// live on (their backups are siblings, so the same device is read and written); lanes run side by side while the saves
+// of one lane run one after another, so no disk serves two backups at once. Each save starts with an equal share of
+// the worker threads among the lanes still running, so a lane that runs out of saves leaves its share to the others.
+public class BatchBackup {
+    // A directory holding any of these is a save; saves are at most this deep below the root (Saves/<mode>/<world>)
+    private static final Set<String> SAVE_MARKERS = Set.of("map_t.bin", "map_ver.bin", "players.db");
+    private static final int MAX_DEPTH = 3;
+
+    private static class Save {
+        private final File dir;
+        private final String name;
+        private final String backupPath;
+        private final FileStore store;
+        private int changedFiles;
+        private int unchangedFiles;
+        private long bytesWritten;
+        private long durationMillis;
+        private int threads;
+        private Exception failure;
+        private RunMetrics metrics;
+        private String log = "";
+
+        private Save(File dir, String name, String backupPath, FileStore store) {
+            this.dir = dir;
+            this.name = name;
+            this.backupPath = backupPath;
+            this.store = store;
+        }
+    }
+
+    private final File savesRoot;
+    private final int threads;
+    private final boolean verbose;
+    // Carries the settings from the command line; every save gets a copy of it
+    private final PZSaver settings;
+    private final List<Save> saves = new ArrayList<>();
+    // Backups of a save found next to it; they are listed in the plan and summary but never backed up themselves
+    private final List<File> skippedBackups = new ArrayList<>();
+    private final Map<FileStore, Deque<Save>> lanes = new LinkedHashMap<>();
+
+    // Output of the thread backing up a save (and of the worker and progress threads it starts) goes to that save's buffer
+    private static final InheritableThreadLocal<ByteArrayOutputStream> CAPTURE = new InheritableThreadLocal<>();
+    private PrintStream console;
+
+    public BatchBackup(File savesRoot, PZSaver settings, int threads, boolean verbose) throws IOException {
+        this.savesRoot = savesRoot;
+        this.settings = settings;
+        this.threads = CopyEngine.resolveWorkers(threads);
+        this.verbose = verbose;
+        if (!savesRoot.isDirectory()) {
+            throw new IOException("Saves directory does not exist.");
+        }
+        List<File> found = new ArrayList<>();
+        findSaves(savesRoot, 0, found, skippedBackups);
+        for (File link : found) {
+            String name = savesRoot.toPath().relativize(link.toPath()).toString().replace(File.separatorChar, '/');
+            // A save linked in from another disk is backed up next to its real location, on that disk
+            File dir = link.toPath().toRealPath().toFile();
+            Save save = new Save(dir, name.isEmpty() ? dir.getName() : name, settings.getDefaultBackupPath(dir.getPath()), Files.getFileStore(dir.toPath()));
+            saves.add(save);
+            lanes.computeIfAbsent(save.store, store -> new ArrayDeque<>()).add(save);
+        }
+    }
+
+    public int getSaveCount() {
+        return saves.size();
+    }
+
+    public void printPlan() {
+        System.out.println("Saves directory: " + savesRoot.getAbsolutePath());
+        for (Save save : saves) {
+            System.out.println("  " + save.name + " -> " + new File(save.backupPath).getAbsolutePath());
+        }
+        for (File backup : skippedBackups) {
+            System.out.println("  " + relativeName(backup) + " skipped: backup of " + relativeName(getBackedUpSave(backup)));
+        }
+        System.out.println("Saves found: " + saves.size() + " on " + lanes.size() + " storage device" + (lanes.size() == 1 ? "" : "s"));
+    }
+
+    // Backs up (and with a test, verifies) every save, then prints one report for all of them
+    public void run(boolean skipOperation, boolean testRequested, boolean deepTest, boolean collectMetrics) throws IOException {
+        long startTime = System.currentTimeMillis();
+        AtomicInteger activeLanes = new AtomicInteger(lanes.size());
+        AtomicInteger finishedSaves = new AtomicInteger();
+
+        console = System.out;
+        System.setOut(new PrintStream(new CapturingOutputStream(console), true));
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, lanes.size()), runnable -> {
+            Thread thread = new Thread(runnable, "pzsaver-batch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            for (Deque<Save> lane : lanes.values()) {
+                // One thread per lane, so only that thread takes saves from it
+                executor.execute(() -> {
+                    Save save;
+                    while ((save = lane.poll()) != null) {
+                        save.threads = Math.max(1, threads / Math.max(1, activeLanes.get()));
+                        runSave(save, skipOperation, testRequested, deepTest);
+                        printFinished(save, finishedSaves.incrementAndGet());
+                    }
+                    activeLanes.decrementAndGet();
+                });
+            }
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                // Large saves can take a while
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the backups to finish.", e);
+        } finally {
+            System.setOut(console);
+        }
+
+        printSummary(System.currentTimeMillis() - startTime);
+        if (collectMetrics) {
+            System.out.println();
+            System.out.println(toJson());
+        }
+    }
+
+    // Helper to back up one save on the calling lane thread, keeping its output for the report
+    private void runSave(Save save, boolean skipOperation, boolean testRequested, boolean deepTest) {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        CAPTURE.set(log);
+        long start = System.currentTimeMillis();
+        try {
+            PZSaver saver = settings.forSave(save.dir.getPath(), save.backupPath, save.threads);
+            save.metrics = saver.getMetrics();
+            if (!skipOperation) {
+                saver.runFullBackup();
+                save.changedFiles = saver.getChangedFiles();
+                save.unchangedFiles = saver.getUnchangedFiles();
+                save.bytesWritten = saver.getMetrics().getBytes();
+            }
+            if (testRequested) {
+                saver.runRequestedTest(deepTest);
+            }
+        } catch (IOException | RuntimeException e) {
+            save.failure = e;
+        } finally {
+            save.durationMillis = System.currentTimeMillis() - start;
+            CAPTURE.remove();
+            save.log = cleanLog(log.toString());
+        }
+    }
+
+    private void printFinished(Save save, int finished) {
+        synchronized (console) {
+            console.println("[" + finished + "/" + saves.size() + "] " + save.name + ": "
+                    + (save.failure != null ? "failed (" + save.failure + ")" : describe(save)));
+        }
+    }
+
+    private void printSummary(long totalTime) {
+        int failed = 0;
+        int changedFiles = 0;
+        long bytesWritten = 0;
+        for (Save save : saves) {
+            if ((verbose || save.failure != null) && !save.log.isEmpty()) {
+                System.out.println("\n--- " + save.name + " ---");
+                System.out.println(save.log);
+            }
+            failed += save.failure != null ? 1 : 0;
+            changedFiles += save.changedFiles;
+            bytesWritten += save.bytesWritten;
+        }
+
+        int nameWidth = saves.stream().mapToInt(save -> save.name.length()).max().orElse(0);
+        for (File backup : skippedBackups) {
+            nameWidth = Math.max(nameWidth, relativeName(backup).length());
+        }
+        System.out.println("\nBatch Summary:");
+        System.out.println("Saves directory: " + savesRoot.getAbsolutePath());
+        for (Save save : saves) {
+            System.out.println(String.format("  %-" + nameWidth + "s  %s", save.name, save.failure != null ? "FAILED: " + save.failure : describe(save)));
+        }
+        for (File backup : skippedBackups) {
+            System.out.println(String.format("  %-" + nameWidth + "s  skipped: backup of %s", relativeName(backup), relativeName(getBackedUpSave(backup))));
+        }
+        System.out.println("Saves backed up: " + (saves.size() - failed) + " of " + saves.size() + (failed > 0 ? " (" + failed + " failed)" : ""));
+        System.out.println("Storage devices: " + lanes.size() + ", worker threads: " + threads);
+        System.out.println("Files changed: " + changedFiles + " (" + FileUtils.byteCountToDisplaySize(bytesWritten) + " written)");
+        System.out.println("Total time: " + ProgressReporter.formatDuration(totalTime));
+    }
+
+    // Helper for the one-line result of a save
+    private static String describe(Save save) {
+        return save.changedFiles + " changed, " + save.unchangedFiles + " unchanged, " + FileUtils.byteCountToDisplaySize(save.bytesWritten)
+                + " written, " + save.threads + " thread" + (save.threads == 1 ? "" : "s") + ", " + ProgressReporter.formatDuration(save.durationMillis);
+    }
+
+    // {"saves":[{"save":"<name>","failed":false,"metrics":{"phases":[...]}}, ...]}
+    private String toJson() {
+        StringBuilder json = new StringBuilder("{\"saves\":[");
+        for (int i = 0; i < saves.size(); i++) {
+            Save save = saves.get(i);
+            json.append(i > 0 ? "," : "").append("{\"save\":\"").append(save.name.replace("\\", "\\\\").replace("\"", "\\\""))
+                    .append("\",\"failed\":").append(save.failure != null)
+                    .append(",\"metrics\":").append(save.metrics != null ? save.metrics.toJson() : "null").append('}');
+        }
+        return json.append("]}").toString();
+    }
+
+    // Helper to drop the progress line redraws from a captured log, keeping the last state of each line
+    private static String cleanLog(String log) {
+        StringBuilder cleaned = new StringBuilder();
+        for (String line : log.split("\\r?\\n")) {
+            String last = line.substring(line.lastIndexOf('\r') + 1);
+            if (!last.isBlank()) {
+                cleaned.append(cleaned.length() > 0 ? "\n" : "").append(last);
+            }
+        }
+        return cleaned.toString();
+    }
+
+    // Helper to collect the saves below a directory; backups next to a save are not saves themselves and go to skipped
+    private static void findSaves(File dir, int depth, List<File> saves, List<File> skipped) {
+        if (isSave(dir)) {
+            saves.add(dir);
+            return;
+        }
+        File[] children = dir.listFiles(File::isDirectory);
+        if (children == null || depth >= MAX_DEPTH) {
+            return;
+        }
+        Arrays.sort(children, Comparator.comparing(File::getName));
+        for (File child : children) {
+            // Hidden directories include backups that prune is deleting
+            if (child.getName().startsWith(".")) {
+                continue;
+            }
+            if (getBackedUpSave(child) != null) {
+                skipped.add(child);
+            } else {
+                findSaves(child, depth + 1, saves, skipped);
+            }
+        }
+    }
+
+    private static boolean isSave(File dir) {
+        for (String marker : SAVE_MARKERS) {
+            if (new File(dir, marker).isFile()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Helper to recognize a directory backup of a sibling save, e.g. Dan-1 next to Dan: it must carry PZSaver's manifest
+    // or be listed in the sibling's catalog, so a real save named World-2 next to World is still backed up. Returns the
+    // sibling save, or null. Store and pack backups hold no save files, so the walk passes through them harmlessly.
+    private static File getBackedUpSave(File dir) {
+        String name = dir.getName();
+        int dash = name.lastIndexOf('-');
+        if (dash <= 0 || !name.substring(dash).matches("-\\d+")) {
+            return null;
+        }
+        File sibling = new File(dir.getParentFile(), name.substring(0, dash));
+        if (!isSave(sibling)) {
+            return null;
+        }
+        if (BackupManifest.exists(dir)) {
+            return sibling;
+        }
+        BackupCatalog catalog = BackupCatalog.load(sibling.getPath());
+        return catalog.getEntries().containsKey(catalog.ordinalOf(dir)) ? sibling : null;
+    }
+
+    private String relativeName(File dir) {
+        String name = savesRoot.toPath().relativize(dir.toPath()).toString().replace(File.separatorChar, '/');
+        return name.isEmpty() ? dir.getName() : name;
+    }
+
+    // Sends everything written on a thread with a capture buffer to that buffer, and everything else to the console
+    private static class CapturingOutputStream extends OutputStream {
+        private final OutputStream console;
+
+        private CapturingOutputStream(OutputStream console) {
+            this.console = console;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            ByteArrayOutputStream capture = CAPTURE.get();
+            if (capture != null) {
+                capture.write(b);
+            } else {
+                console.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteArrayOutputStream capture = CAPTURE.get();
+            if (capture != null) {
+                capture.write(b, off, len);
+            } else {
+                console.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            console.flush();
+        }
+    }
+}
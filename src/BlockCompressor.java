@@ -0,0 +1,173 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Deflate compression in independent 1 MiB blocks. Each block is framed as
+//   int rawLength, int storedLength, storedLength bytes
+// and stored uncompressed when deflating does not make it smaller. Independent blocks let large files be
+// compressed on several cores at once while memory stays bounded to a few blocks per file.
+public class BlockCompressor {
+    public static final int BLOCK_SIZE = 1 << 20;
+
+    private static final int FRAME_HEADER_SIZE = 8;
+    // Blocks of one file being compressed at the same time
+    private static final int MAX_BLOCKS_IN_FLIGHT = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private final int level;
+
+    public BlockCompressor(int level) {
+        this.level = level;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    // Compresses a small file held in memory into a single frame
+    public byte[] compress(byte[] data) {
+        return compressBlock(data, data.length);
+    }
+
+    // Compresses a channel block by block, with several blocks deflating in parallel, and writes the frames in order.
+    // Updates crc with the uncompressed data and returns the number of bytes written. With a rate limiter (may be null)
+    // every block read waits for its share of the byte rate.
+    public long compress(FileChannel in, WritableByteChannel out, CRC32C crc, RateLimiter limiter) throws IOException {
+        Deque<CompletableFuture<byte[]>> pending = new ArrayDeque<>();
+        long written = 0;
+        boolean endOfInput = false;
+        while (!endOfInput || !pending.isEmpty()) {
+            while (!endOfInput && pending.size() < MAX_BLOCKS_IN_FLIGHT) {
+                byte[] block = new byte[BLOCK_SIZE];
+                long start = System.nanoTime();
+                int length = readBlock(in, block);
+                if (limiter != null && length > 0) {
+                    limiter.consume(length, System.nanoTime() - start, RateLimiter.Transfer.COMPRESS);
+                }
+                if (length == 0) {
+                    endOfInput = true;
+                } else {
+                    crc.update(block, 0, length);
+                    pending.add(CompletableFuture.supplyAsync(() -> compressBlock(block, length)));
+                }
+            }
+            if (!pending.isEmpty()) {
+                written += writeFully(out, ByteBuffer.wrap(join(pending.removeFirst())));
+            }
+        }
+        return written;
+    }
+
+    // Decompresses storedLength bytes of frames starting at offset and writes the original data to out
+    public static void decompress(FileChannel in, long offset, long storedLength, WritableByteChannel out) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+        Inflater inflater = new Inflater(true);
+        try {
+            long position = offset;
+            long end = offset + storedLength;
+            while (position < end) {
+                header.clear();
+                readFully(in, header, position);
+                header.flip();
+                int rawLength = header.getInt();
+                int frameLength = header.getInt();
+                position += FRAME_HEADER_SIZE;
+
+                ByteBuffer stored = ByteBuffer.allocate(frameLength);
+                readFully(in, stored, position);
+                position += frameLength;
+                if (frameLength == rawLength) {
+                    writeFully(out, stored.flip());
+                    continue;
+                }
+
+                byte[] raw = new byte[rawLength];
+                inflater.reset();
+                inflater.setInput(stored.array(), 0, frameLength);
+                int inflated = 0;
+                while (inflated < rawLength) {
+                    int count = inflater.inflate(raw, inflated, rawLength - inflated);
+                    if (count == 0 && (inflater.finished() || inflater.needsInput())) {
+                        break;
+                    }
+                    inflated += count;
+                }
+                if (inflated != rawLength) {
+                    throw new IOException("Corrupt compressed block at offset " + (position - frameLength));
+                }
+                writeFully(out, ByteBuffer.wrap(raw));
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed data", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private byte[] compressBlock(byte[] data, int length) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            byte[] output = new byte[FRAME_HEADER_SIZE + length];
+            int compressed = 0;
+            while (!deflater.finished() && compressed < length) {
+                compressed += deflater.deflate(output, FRAME_HEADER_SIZE + compressed, length - compressed);
+            }
+            ByteBuffer frame = ByteBuffer.wrap(output);
+            if (!deflater.finished() || compressed >= length) {
+                // Incompressible; keep the block as it is
+                frame.putInt(length).putInt(length).put(data, 0, length);
+                return output;
+            }
+            frame.putInt(length).putInt(compressed);
+            return Arrays.copyOf(output, FRAME_HEADER_SIZE + compressed);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] join(CompletableFuture<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Compression failed", e.getCause());
+        }
+    }
+
+    private static int readBlock(FileChannel in, byte[] block) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(block);
+        while (buffer.hasRemaining() && in.read(buffer) >= 0) {
+            // Keep reading until the block is full or the file ends
+        }
+        return buffer.position();
+    }
+
+    private static void readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of compressed data");
+            }
+        }
+    }
+
+    private static long writeFully(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+        long written = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        return written;
+    }
+}
@@ -0,0 +1,127 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Runs per-file work (stat, compare, copy, delete) on a bounded pool of worker threads.
+// With a single worker everything runs inline on the calling thread, which keeps the old sequential behaviour.
+public class CopyEngine implements AutoCloseable {
+    // How many tasks each worker may have queued before submit() blocks the producer
+    private static final int QUEUE_DEPTH_PER_WORKER = 64;
+
+    public interface IOTask {
+        void run() throws IOException;
+    }
+
+    private final int workers;
+    private final int maxInFlight;
+    private final ExecutorService executor;
+    private final Semaphore inFlight;
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+    private final RunMetrics.Phase phase;
+
+    public CopyEngine(int workers) {
+        this(workers, null);
+    }
+
+    // Every task's run time is recorded in the phase's latency histogram
+    public CopyEngine(int workers, RunMetrics.Phase phase) {
+        this.phase = phase;
+        this.workers = Math.max(1, workers);
+        this.maxInFlight = this.workers * QUEUE_DEPTH_PER_WORKER;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.executor = this.workers > 1 ? Executors.newFixedThreadPool(this.workers, runnable -> {
+            Thread thread = new Thread(runnable, "pzsaver-worker");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    // Helper to resolve the worker count from the command line; 0 means one worker per CPU core
+    public static int resolveWorkers(int requested) {
+        return requested > 0 ? requested : Runtime.getRuntime().availableProcessors();
+    }
+
+    public void submit(IOTask task) throws IOException {
+        if (failure.get() != null) {
+            return;
+        }
+        if (executor == null) {
+            runTask(task);
+            rethrowFailure();
+            return;
+        }
+
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while queueing file operation.", e);
+        }
+        executor.execute(() -> {
+            try {
+                if (failure.get() == null) {
+                    runTask(task);
+                }
+            } finally {
+                inFlight.release();
+            }
+        });
+    }
+
+    // Blocks until every submitted task has finished, then rethrows the first failure (if any)
+    public void awaitCompletion() throws IOException {
+        if (executor != null) {
+            try {
+                inFlight.acquire(maxInFlight);
+                inFlight.release(maxInFlight);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for file operations to finish.", e);
+            }
+        }
+        rethrowFailure();
+    }
+
+    private void runTask(IOTask task) {
+        long start = phase != null ? System.nanoTime() : 0;
+        try {
+            task.run();
+            if (phase != null) {
+                phase.recordFile(System.nanoTime() - start);
+            }
+        } catch (IOException | RuntimeException e) {
+            failure.compareAndSet(null, e);
+        }
+    }
+
+    private void rethrowFailure() throws IOException {
+        Exception e = failure.get();
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        } else if (e instanceof UncheckedIOException) {
+            throw ((UncheckedIOException) e).getCause();
+        } else if (e != null) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
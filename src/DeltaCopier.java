@@ -0,0 +1,72 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+
+// Updates an existing backup copy in place by comparing it block by block with the source and rewriting only the
+// blocks that differ. Meant for the large files Project Zomboid touches a few pages at a time (players.db, vehicles.db,
+// map_t.bin); small files are cheaper to copy whole.
+public class DeltaCopier {
+    // Files below this size are copied whole
+    public static final long MIN_DELTA_SIZE = 4L << 20;
+
+    private static final int BLOCK_SIZE = 64 << 10;
+
+    private final ThreadLocal<ByteBuffer[]> buffers = ThreadLocal.withInitial(() ->
+            new ByteBuffer[]{ByteBuffer.allocateDirect(BLOCK_SIZE), ByteBuffer.allocateDirect(BLOCK_SIZE)});
+
+    // Brings target up to date with source and copies the source mtime. Returns the number of bytes written. With a
+    // rate limiter (may be null) every block waits for its share of the byte rate.
+    public long update(Path source, Path target, FileTime lastModified, RateLimiter limiter) throws IOException {
+        long bytesWritten = 0;
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer sourceBlock = buffers.get()[0];
+            ByteBuffer targetBlock = buffers.get()[1];
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                long start = System.nanoTime();
+                int sourceRead = readBlock(in, sourceBlock, position);
+                if (sourceRead == 0) {
+                    // The source shrank while we were reading it
+                    size = position;
+                    break;
+                }
+                int targetRead = readBlock(out, targetBlock, position);
+                targetBlock.limit(Math.min(targetRead, sourceRead));
+                if (targetRead < sourceRead || !sourceBlock.equals(targetBlock)) {
+                    while (sourceBlock.hasRemaining()) {
+                        out.write(sourceBlock, position + sourceBlock.position());
+                    }
+                    bytesWritten += sourceRead;
+                }
+                position += sourceRead;
+                if (limiter != null) {
+                    limiter.consume(sourceRead, System.nanoTime() - start, RateLimiter.Transfer.DELTA);
+                }
+            }
+            if (out.size() > size) {
+                out.truncate(size);
+            }
+        }
+        Files.setLastModifiedTime(target, lastModified);
+        return bytesWritten;
+    }
+
+    // Helper to read one block at a position; leaves the buffer flipped for reading
+    private static int readBlock(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        return buffer.remaining();
+    }
+}
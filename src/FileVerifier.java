@@ -0,0 +1,143 @@
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.zip.CRC32C;
+
+// Content verification for the deep test. Both files of a pair are read side by side exactly once through
+// per-thread direct buffers; the bytes are compared chunk by chunk and hashed on the way.
+public class FileVerifier {
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    public enum Algorithm {
+        // Hardware-accelerated on current CPUs, so hashing never becomes the bottleneck
+        CRC32C,
+        SHA256;
+
+        public static Algorithm fromName(String name) {
+            for (Algorithm algorithm : values()) {
+                if (algorithm.name().equalsIgnoreCase(name.replace("-", ""))) {
+                    return algorithm;
+                }
+            }
+            return null;
+        }
+    }
+
+    private interface Hasher {
+        void update(ByteBuffer buffer);
+
+        String finish();
+    }
+
+    private final Algorithm algorithm;
+    private final ThreadLocal<ByteBuffer[]> buffers = ThreadLocal.withInitial(() ->
+            new ByteBuffer[]{ByteBuffer.allocateDirect(BUFFER_SIZE), ByteBuffer.allocateDirect(BUFFER_SIZE)});
+
+    public FileVerifier(Algorithm algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    public Algorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    // Returns the content hash shared by both files if they are identical, or null at the first difference
+    public String compare(Path source, Path target) throws IOException {
+        try (FileChannel targetChannel = FileChannel.open(target, StandardOpenOption.READ)) {
+            return compare(source, targetChannel, 0, targetChannel.size());
+        }
+    }
+
+    // Compares a file with a region of another channel, e.g. its copy inside a pack file
+    public String compare(Path source, FileChannel target, long offset, long length) throws IOException {
+        try (FileChannel sourceChannel = FileChannel.open(source, StandardOpenOption.READ)) {
+            if (sourceChannel.size() != length) {
+                return null;
+            }
+
+            Hasher hasher = newHasher();
+            ByteBuffer sourceBuffer = buffers.get()[0];
+            ByteBuffer targetBuffer = buffers.get()[1];
+            long position = 0;
+            while (true) {
+                int sourceRead = fill(sourceChannel, sourceBuffer, position, length - position);
+                int targetRead = fill(target, targetBuffer, offset + position, length - position);
+                if (sourceRead != targetRead) {
+                    return null;
+                } else if (sourceRead == 0) {
+                    return hasher.finish();
+                } else if (!sourceBuffer.equals(targetBuffer)) {
+                    return null;
+                }
+                hasher.update(sourceBuffer);
+                position += sourceRead;
+            }
+        }
+    }
+
+    // Hashes a single file with the configured algorithm
+    public String hash(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            Hasher hasher = newHasher();
+            ByteBuffer buffer = buffers.get()[0];
+            long position = 0;
+            int read;
+            while ((read = fill(channel, buffer, position, Long.MAX_VALUE)) > 0) {
+                hasher.update(buffer);
+                position += read;
+            }
+            return hasher.finish();
+        }
+    }
+
+    // Helper to read up to maxBytes at a position until the buffer is full or the data ends; leaves the buffer flipped for reading
+    private static int fill(FileChannel channel, ByteBuffer buffer, long position, long maxBytes) throws IOException {
+        buffer.clear();
+        if (maxBytes < buffer.capacity()) {
+            buffer.limit((int) maxBytes);
+        }
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        return buffer.remaining();
+    }
+
+    private Hasher newHasher() {
+        if (algorithm == Algorithm.SHA256) {
+            MessageDigest digest = DigestUtils.getSha256Digest();
+            return new Hasher() {
+                @Override
+                public void update(ByteBuffer buffer) {
+                    digest.update(buffer);
+                }
+
+                @Override
+                public String finish() {
+                    return Hex.encodeHexString(digest.digest());
+                }
+            };
+        }
+
+        CRC32C crc = new CRC32C();
+        return new Hasher() {
+            @Override
+            public void update(ByteBuffer buffer) {
+                crc.update(buffer);
+            }
+
+            @Override
+            public String finish() {
+                return String.format("%08x", crc.getValue());
+            }
+        };
+    }
+}
@@ -0,0 +1,82 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Streams a directory tree through Files.walkFileTree, handing each entry to a visitor together with the
+// attributes read during the walk, so callers never need a second stat per entry or a materialized file list.
+// PZSaver's own metadata directory is always skipped, and so are entries deleted while the walk reaches them (a
+// running server creates and drops files like players.db-journal all the time).
+public class FileWalker {
+    public interface Visitor {
+        // Return false to skip the directory's contents
+        boolean visitDirectory(Path dir, String relativePath, BasicFileAttributes attrs) throws IOException;
+
+        void visitFile(Path file, String relativePath, BasicFileAttributes attrs) throws IOException;
+    }
+
+    public static void walk(File root, Visitor visitor) throws IOException {
+        Path rootPath = root.toPath();
+        Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (!dir.equals(rootPath) && dir.getFileName().toString().equals(BackupManifest.METADATA_DIR)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return visitor.visitDirectory(dir, relativize(rootPath, dir), attrs) ? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                visitor.visitFile(file, relativize(rootPath, file), attrs);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                if (e instanceof NoSuchFileException && !file.equals(rootPath)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                throw e;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                // A directory deleted while its entries were being listed is skipped like a vanished file
+                if (e != null && !(e instanceof NoSuchFileException && !dir.equals(rootPath))) {
+                    throw e;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    // Counts the files and directories of a tree (including the root) without doing any per-entry work
+    public static int count(File root) throws IOException {
+        AtomicInteger entries = new AtomicInteger();
+        walk(root, new Visitor() {
+            @Override
+            public boolean visitDirectory(Path dir, String relativePath, BasicFileAttributes attrs) {
+                entries.incrementAndGet();
+                return true;
+            }
+
+            @Override
+            public void visitFile(Path file, String relativePath, BasicFileAttributes attrs) {
+                entries.incrementAndGet();
+            }
+        });
+        return entries.get();
+    }
+
+    // Helper to build the '/'-separated relative path used as a key in manifests and indexes
+    public static String relativize(Path root, Path child) {
+        String relativePath = root.relativize(child).toString();
+        return File.separatorChar == '/' ? relativePath : relativePath.replace(File.separatorChar, '/');
+    }
+}
@@ -1,17 +1,46 @@
-import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.filefilter.TrueFileFilter;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.Collection;
+import java.nio.file.FileSystemException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeSet;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class PZSaver {
     private static final String BACKUP = "backup";
     private static final String RESTORE = "restore";
+    private static final String WATCH = "watch";
+    private static final String BATCH = "batch";
+    private static final String PRUNE = "prune";
     private static final String VERBOSE_FLAG = "--verbose";
     private static final String VERBOSE_SHORT_FLAG = "-v";
     private static final String NOPROMPT_FLAG = "--noprompt";
@@ -22,44 +51,171 @@ public class PZSaver {
     private static final String TEST_SHORT_FLAG = "-t";
     private static final String SKIP_FLAG = "--skip";
     private static final String SKIP_SHORT_FLAG = "-s";
+    private static final String THREADS_FLAG = "--threads";
+    private static final String THREADS_SHORT_FLAG = "-j";
+    private static final String FORMAT_FLAG = "--format";
+    private static final String FORMAT_SHORT_FLAG = "-f";
+    private static final String SNAPSHOT_FLAG = "--snapshot";
+    private static final String LINK_FLAG = "--link";
+    private static final String LINK_SHORT_FLAG = "-l";
+    private static final String HASH_FLAG = "--hash";
+    private static final String FULL_FLAG = "--full";
+    private static final String DELTA_FLAG = "--delta";
+    private static final String DELTA_SHORT_FLAG = "-d";
+    private static final String FILE_FLAG = "--file";
+    private static final String REGION_FLAG = "--region";
+    private static final String CLASS_FLAG = "--class";
+    private static final String COMPRESS_FLAG = "--compress";
+    private static final String COMPRESS_SHORT_FLAG = "-c";
+    private static final String DEBOUNCE_FLAG = "--debounce";
+    private static final String CONSISTENT_FLAG = "--consistent";
+    private static final String DRY_RUN_FLAG = "--dry-run";
+    private static final String METRICS_FLAG = "--metrics";
+    private static final String LIMIT_FLAG = "--limit";
+    private static final String LIMIT_FILES_FLAG = "--limit-files";
+    private static final String BACKGROUND_FLAG = "--background";
+    private static final String KEEP_LAST_FLAG = "--keep-last";
+    private static final String KEEP_HOURLY_FLAG = "--keep-hourly";
+    private static final String KEEP_DAILY_FLAG = "--keep-daily";
+    private static final String KEEP_WEEKLY_FLAG = "--keep-weekly";
     private static final String HELP_FLAG = "--help";
     private static final String HELP_SHORT_FLAG = "-h";
+    static final String STORE_SUFFIX = "-store";
+    static final String PACK_SUFFIX = "-pack";
+    // Validation passes of --consistent when no count is given
+    private static final int DEFAULT_CONSISTENT_PASSES = 5;
+
+    private enum FileResult {COPIED, LINKED, PATCHED, SKIPPED, VANISHED}
 
     private final File baseSaveDir;
     private final File backupDir;
     private final boolean verbose;
     private final boolean noPrompt;
     private final boolean createNewBackup;
+    private final int threads;
+    private final BackupFormat format;
+    private final int snapshotId;
+    private final boolean linkUnchanged;
+    private final FileVerifier verifier;
+    private final boolean fullVerify;
+    private final boolean deltaCopy;
+    private final DeltaCopier deltaCopier = new DeltaCopier();
+    private final RestoreSelection selection;
+    private final int compressionLevel;
+    private final int consistentPasses;
+    private final boolean dryRun;
+    private final ProgressReporter progress;
+    private final RateLimiter rateLimiter;
+    private final RunMetrics metrics;
+    private final AtomicBoolean hardLinksSupported = new AtomicBoolean(true);
+    // Changed and unchanged files of the last finished backup, for the batch report
+    private volatile int changedFiles;
+    private volatile int unchangedFiles;
 
-    public PZSaver(String baseSavePath, String backupPath, boolean verbose, boolean noPrompt, boolean createNewBackup) {
+    public PZSaver(String baseSavePath, String backupPath, boolean verbose, boolean noPrompt, boolean createNewBackup, int threads,
+                   BackupFormat format, int snapshotId, boolean linkUnchanged, FileVerifier.Algorithm hashAlgorithm,
+                   boolean fullVerify, boolean deltaCopy, RestoreSelection selection, int compressionLevel, int consistentPasses, boolean dryRun, boolean collectMetrics, RateLimiter rateLimiter) {
         this.baseSaveDir = new File(baseSavePath);
         this.backupDir = new File(backupPath);
         this.verbose = verbose;
         this.noPrompt = noPrompt;
         this.createNewBackup = createNewBackup;
+        this.threads = CopyEngine.resolveWorkers(threads);
+        this.format = format;
+        this.snapshotId = snapshotId;
+        this.linkUnchanged = linkUnchanged;
+        this.verifier = new FileVerifier(hashAlgorithm);
+        this.fullVerify = fullVerify;
+        this.deltaCopy = deltaCopy;
+        this.selection = selection;
+        this.compressionLevel = compressionLevel;
+        this.consistentPasses = consistentPasses;
+        this.dryRun = dryRun;
+        this.progress = new ProgressReporter(verbose);
+        this.metrics = new RunMetrics(collectMetrics);
+        this.rateLimiter = rateLimiter;
+    }
+
+    public RunMetrics getMetrics() {
+        return metrics;
+    }
+
+    // A saver for another save with the same settings, for batch mode. It never prompts and always keeps its metrics,
+    // which the batch report reads.
+    public PZSaver forSave(String baseSavePath, String backupPath, int threads) {
+        return new PZSaver(baseSavePath, backupPath, verbose, true, createNewBackup, threads, format, snapshotId, linkUnchanged, verifier.getAlgorithm(),
+                fullVerify, deltaCopy, selection, compressionLevel, consistentPasses, dryRun, true, rateLimiter);
+    }
+
+    // Where a backup of the given save goes when no backup path is given
+    public String getDefaultBackupPath(String baseSavePath) {
+        return resolveBackupPath(BACKUP, format, createNewBackup, baseSavePath);
     }
 
-    private boolean getApproval(String operationType, boolean testRequested, boolean deepTest) {
+    public int getChangedFiles() {
+        return changedFiles;
+    }
+
+    public int getUnchangedFiles() {
+        return unchangedFiles;
+    }
+
+    private boolean getApproval(String operationType, boolean testRequested, boolean deepTest, RetentionPolicy retention) {
         if (noPrompt) {
             return true;
         }
 
         System.out.println("Operation: " + operationType);
-        if (operationType.equals(BACKUP)) {
+        if (operationType.equals(BACKUP) || operationType.equals(WATCH)) {
             System.out.println("Base directory (source): " + baseSaveDir.getAbsolutePath());
             System.out.println("Target directory (destination): " + backupDir.getAbsolutePath());
         } else if (operationType.equals(RESTORE)) {
             System.out.println("Backup directory (source): " + backupDir.getAbsolutePath());
             System.out.println("Base directory (target): " + baseSaveDir.getAbsolutePath());
+        } else if (operationType.equals(PRUNE)) {
+            System.out.println(format == BackupFormat.STORE ? "Snapshot store: " + backupDir.getAbsolutePath() : "Backups of: " + baseSaveDir.getAbsolutePath());
+            System.out.println("Retention: " + retention);
         }
         if (verbose) {
             System.out.println("Verbose mode: enabled");
         }
+        if (threads > 1) {
+            System.out.println("Worker threads: " + threads);
+        }
+        if (createNewBackup && linkUnchanged) {
+            System.out.println("Unchanged files: hard-linked from the previous backup");
+        }
+        if (deltaCopy) {
+            System.out.println("Large files: update changed blocks only");
+        }
+        if (rateLimiter != null) {
+            System.out.println("Rate limit: " + (Double.isInfinite(rateLimiter.getBytesPerSecond()) ? "adaptive" : FileUtils.byteCountToDisplaySize((long) rateLimiter.getBytesPerSecond()) + "/s")
+                    + (Double.isInfinite(rateLimiter.getFilesPerSecond()) ? "" : ", " + (long) rateLimiter.getFilesPerSecond() + " files/s"));
+        }
+        if (consistentPasses > 0 && !operationType.equals(RESTORE)) {
+            System.out.println("Consistent snapshot: up to " + consistentPasses + " validation passes");
+        }
+        if (format == BackupFormat.STORE) {
+            System.out.println("Backup format: snapshot store" + (snapshotId > 0 ? " (snapshot " + snapshotId + ")" : ""));
+        } else if (format == BackupFormat.PACK) {
+            System.out.println("Backup format: pack files" + (compressionLevel >= 0 && !operationType.equals(RESTORE) ? " (compression level " + compressionLevel + ")" : ""));
+        }
+        if (selection != null && operationType.equals(RESTORE)) {
+            System.out.println("Restore only: " + selection);
+        }
+        if (dryRun && (operationType.equals(RESTORE) || operationType.equals(PRUNE))) {
+            System.out.println("Dry run: print the " + operationType + " plan without changing anything");
+        }
         if (deepTest) {
-            System.out.println("Test mode: deep");
+            System.out.println("Test mode: deep (" + (format == BackupFormat.STORE ? FileVerifier.Algorithm.SHA256 : verifier.getAlgorithm()) + (fullVerify ? ", full" : "") + ")");
         } else if (testRequested) {
             System.out.println("Test mode: shallow");
         }
+        return confirm();
+    }
+
+    // Helper to ask the user whether to go ahead
+    private static boolean confirm() {
         System.out.print("Do you want to continue with the operation? ([Y]es/[n]o): ");
 
         BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
@@ -85,35 +241,114 @@ public class PZSaver {
             throw new IOException("Base save directory does not exist.");
         }
 
+        // With --new --link, files that are unchanged since the previous ordinal backup are hard-linked instead of copied
+        File linkSourceDir = null;
+        BackupManifest linkManifest = null;
+        if (createNewBackup && linkUnchanged) {
+            File lastBackupDir = new File(getLastBackupDirectory(baseSaveDir.getPath()));
+            if (lastBackupDir.isDirectory() && !lastBackupDir.getAbsoluteFile().equals(backupDir.getAbsoluteFile())) {
+                linkSourceDir = lastBackupDir;
+                linkManifest = BackupManifest.load(lastBackupDir);
+            }
+        }
+
         if (!backupDir.exists()) {
             backupDir.mkdirs();
         }
+        if (linkSourceDir != null) {
+            BackupManifest.markHardLinked(linkSourceDir);
+            BackupManifest.markHardLinked(backupDir);
+        }
+        boolean backupHasLinks = BackupManifest.isHardLinked(backupDir);
 
         long startTime = System.currentTimeMillis();
-        int filesCopied = 0;
-        int filesSkipped = 0;
-        Collection<File> files = FileUtils.listFilesAndDirs(baseSaveDir, TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE);
-        int totalFiles = files.size();
-        int processedFiles = 0;
-
-        for (File file : files) {
-            File destFile = new File(backupDir, getRelativePath(baseSaveDir, file));
-            if (file.isDirectory()) {
-                destFile.mkdirs();
-            } else {
-                if (!destFile.exists() || FileUtils.isFileNewer(file, destFile)) {
-                    FileUtils.copyFile(file, destFile);
-                    filesCopied++;
-                } else {
-                    filesSkipped++;
+        RunMetrics.Phase phase = metrics.startPhase("backup");
+        AtomicInteger filesCopied = new AtomicInteger();
+        AtomicInteger filesLinked = new AtomicInteger();
+        AtomicInteger filesPatched = new AtomicInteger();
+        AtomicLong bytesPatched = new AtomicLong();
+        AtomicInteger filesSkipped = new AtomicInteger();
+        AtomicInteger filesVanished = new AtomicInteger();
+        AtomicInteger discoveredFiles = new AtomicInteger();
+        AtomicInteger processedFiles = new AtomicInteger();
+
+        BackupManifest manifest = BackupManifest.load(backupDir);
+        if (manifest.isStale() && verbose) {
+            System.out.println("Backup manifest missing or stale, comparing against the backup files instead.");
+        }
+        manifest.markInProgress();
+        // The previous manifest estimates the total until the walk has seen every entry
+        int estimatedFiles = estimateFiles(Math.max(manifest.size(), linkManifest != null ? linkManifest.size() : 0));
+        File linkDir = linkSourceDir;
+        BackupManifest previousManifest = linkManifest;
+
+        try (CopyEngine engine = new CopyEngine(threads, phase)) {
+            FileWalker.walk(baseSaveDir, new FileWalker.Visitor() {
+                @Override
+                public boolean visitDirectory(Path dir, String relativePath, BasicFileAttributes attrs) throws IOException {
+                    Files.createDirectories(backupDir.toPath().resolve(relativePath));
+                    discoveredFiles.incrementAndGet();
+                    processedFiles.incrementAndGet();
+                    return true;
                 }
-            }
-            processedFiles++;
-            printProgress("Backup", processedFiles, totalFiles, startTime, file.getPath(), filesCopied, filesSkipped);
+
+                @Override
+                public void visitFile(Path file, String relativePath, BasicFileAttributes attrs) throws IOException {
+                    discoveredFiles.incrementAndGet();
+                    engine.submit(() -> {
+                        switch (backupFile(file, relativePath, attrs, manifest, backupHasLinks, linkDir, previousManifest, bytesPatched, phase)) {
+                            case LINKED -> filesLinked.incrementAndGet();
+                            case PATCHED -> filesPatched.incrementAndGet();
+                            case COPIED -> filesCopied.incrementAndGet();
+                            case SKIPPED -> filesSkipped.incrementAndGet();
+                            case VANISHED -> filesVanished.incrementAndGet();
+                        }
+                        printProgress("Backup", processedFiles.incrementAndGet(), Math.max(discoveredFiles.get(), estimatedFiles), startTime, file.toString(), filesCopied.get(), filesSkipped.get());
+                    });
+                }
+            });
+            engine.awaitCompletion();
         }
 
         // Ensure final progress is 100%
-        printProgress("Backup", totalFiles, totalFiles, startTime, "", filesCopied, filesSkipped);
+        int totalFiles = discoveredFiles.get();
+        finishProgress("Backup", totalFiles, startTime, filesCopied.get(), filesSkipped.get());
+        phase.end();
+
+        // With --consistent, re-check the save until a whole pass finds nothing that changed while it was being copied.
+        // Every copied file then held its copied content at the moment the last pass started.
+        int validationPasses = 0;
+        int filesRecopied = 0;
+        boolean consistent = consistentPasses == 0;
+        long lastChangedPassStart = startTime;
+        while (!consistent && validationPasses < consistentPasses) {
+            long passStart = System.currentTimeMillis();
+            RunMetrics.Phase validationPhase = metrics.startPhase("validation");
+            int changed = revalidate(manifest, backupHasLinks, bytesPatched, validationPhase);
+            validationPhase.end();
+            validationPasses++;
+            if (changed == 0) {
+                consistent = true;
+            } else {
+                filesRecopied += changed;
+                lastChangedPassStart = passStart;
+            }
+        }
+        long consistencyWindow = System.currentTimeMillis() - lastChangedPassStart;
+        manifest.save();
+
+        // Ordinal backups are recorded in the save's catalog, which the next backup and prune go by
+        BackupCatalog catalog = BackupCatalog.load(baseSaveDir.getPath());
+        int ordinal = catalog.ordinalOf(backupDir);
+        if (ordinal > 0) {
+            catalog.put(BackupCatalog.describe(ordinal, backupDir, manifest, System.currentTimeMillis()));
+            // The backup the files were linked from now shares them as well
+            BackupCatalog.Entry linkSource = linkDir != null ? catalog.getEntries().get(catalog.ordinalOf(linkDir)) : null;
+            if (linkSource != null && !linkSource.linked) {
+                catalog.put(new BackupCatalog.Entry(linkSource.ordinal, linkSource.timestamp, linkSource.size, linkSource.files, true));
+            }
+            catalog.save();
+        }
 
         long endTime = System.currentTimeMillis();
         long totalTime = endTime - startTime;
@@ -121,117 +356,891 @@ public class PZSaver {
         System.out.println("\nBackup Summary:");
         System.out.println("Base directory: " + baseSaveDir.getAbsolutePath());
         System.out.println("Target directory: " + backupDir.getAbsolutePath());
-        System.out.println("Files copied: " + filesCopied);
-        System.out.println("Files skipped: " + filesSkipped);
+        System.out.println("Files copied: " + filesCopied.get());
+        if (linkDir != null) {
+            System.out.println("Files linked: " + filesLinked.get() + " (from " + linkDir.getAbsolutePath() + ")");
+        }
+        if (deltaCopy) {
+            System.out.println("Files patched: " + filesPatched.get() + " (" + FileUtils.byteCountToDisplaySize(bytesPatched.get()) + " written)");
+        }
+        System.out.println("Files skipped: " + filesSkipped.get());
+        printVanishedFiles(filesVanished.get());
+        if (consistentPasses > 0) {
+            System.out.println("Validation passes: " + validationPasses + " (" + filesRecopied + " files re-copied)");
+            if (consistent) {
+                System.out.println("Consistency window: " + consistencyWindow + " ms");
+            } else {
+                System.out.println("Warning: the save was still changing after " + validationPasses + " validation passes, the backup may be inconsistent.");
+            }
+        }
+        printRateLimitSummary();
         System.out.println("Total time: " + formattedTime);
     }
 
+    // Helper for one --consistent validation pass: walks the base directory again (metadata only) and re-copies every
+    // file whose size or mtime moved since it was copied. Returns the number of files re-copied or deleted meanwhile.
+    private int revalidate(BackupManifest manifest, boolean backupHasLinks, AtomicLong bytesPatched, RunMetrics.Phase phase) throws IOException {
+        AtomicInteger filesChanged = new AtomicInteger();
+        try (CopyEngine engine = new CopyEngine(threads, phase)) {
+            FileWalker.walk(baseSaveDir, new FileWalker.Visitor() {
+                @Override
+                public boolean visitDirectory(Path dir, String relativePath, BasicFileAttributes attrs) throws IOException {
+                    Files.createDirectories(backupDir.toPath().resolve(relativePath));
+                    return true;
+                }
+
+                @Override
+                public void visitFile(Path file, String relativePath, BasicFileAttributes attrs) throws IOException {
+                    engine.submit(() -> {
+                        if (backupFile(file, relativePath, attrs, manifest, backupHasLinks, null, null, bytesPatched, phase) != FileResult.SKIPPED) {
+                            filesChanged.incrementAndGet();
+                        }
+                    });
+                }
+            });
+            engine.awaitCompletion();
+        }
+        return filesChanged.get();
+    }
+
+    // Helper to bring one backup file up to date with its source file and record it in the manifest
+    private FileResult backupFile(Path file, String relativePath, BasicFileAttributes attrs, BackupManifest manifest, boolean backupHasLinks,
+                                  File linkDir, BackupManifest previousManifest, AtomicLong bytesPatched, RunMetrics.Phase phase) throws IOException {
+        File destFile = new File(backupDir, relativePath);
+        long size = attrs.size();
+        long lastModified = attrs.lastModifiedTime().toMillis();
+        BackupManifest.Entry entry = manifest.isStale() ? readEntry(destFile) : manifest.get(relativePath);
+        if (entry != null && entry.size == size && lastModified <= entry.lastModified) {
+            if (manifest.isStale()) {
+                manifest.put(relativePath, entry.size, entry.lastModified, null);
+            }
+            return FileResult.SKIPPED;
+        }
+
+        FileResult result;
+        try {
+            if (linkDir != null && linkUnchangedFile(previousManifest, new File(linkDir, relativePath), relativePath, destFile, size, lastModified)) {
+                result = FileResult.LINKED;
+            } else if (deltaCopy && entry != null && size >= DeltaCopier.MIN_DELTA_SIZE && isSafeToPatch(destFile.toPath(), backupHasLinks)) {
+                beforeCopy();
+                long written = deltaCopier.update(file, destFile.toPath(), attrs.lastModifiedTime(), rateLimiter);
+                bytesPatched.addAndGet(written);
+                phase.addBytes(written);
+                result = FileResult.PATCHED;
+            } else {
+                beforeCopy();
+                FileCopier.copy(file, destFile.toPath(), size, attrs.lastModifiedTime(), rateLimiter);
+                phase.addBytes(size);
+                result = FileResult.COPIED;
+            }
+        } catch (NoSuchFileException e) {
+            if (!isVanished(file)) {
+                throw e;
+            }
+            // Deleted since the walk saw it; the backup drops it too, and a --consistent pass counts it as a change
+            Files.deleteIfExists(destFile.toPath());
+            manifest.remove(relativePath);
+            return FileResult.VANISHED;
+        }
+        manifest.put(relativePath, size, lastModified, null);
+        return result;
+    }
+
+    // Keeps the backup up to date while the game is running: every debounced batch of changes reported by the
+    // watcher is copied on its own, and only lost events or a missing manifest trigger a full backup.
+    public void watch(long debounceMillis) throws IOException {
+        if (!baseSaveDir.exists()) {
+            throw new IOException("Base save directory does not exist.");
+        }
+        // Register first so that nothing written during the initial backup is missed
+        try (SaveWatcher watcher = new SaveWatcher(baseSaveDir, debounceMillis)) {
+            runFullBackup();
+            System.out.println("\nWatching " + watcher.getWatchedDirectoryCount() + " directories in " + baseSaveDir.getAbsolutePath() + ", press Ctrl+C to stop.");
+            watcher.run((changedPaths, rescan) -> {
+                try {
+                    if (rescan || format != BackupFormat.DIRECTORY) {
+                        if (rescan) {
+                            System.out.println("\nChange events were lost, rescanning the whole save.");
+                        }
+                        runFullBackup();
+                    } else {
+                        backupChangedFiles(changedPaths);
+                    }
+                } catch (IOException e) {
+                    // The game may delete or replace files while they are copied; the next batch picks them up again
+                    System.out.println("\nBackup of changes failed: " + e);
+                }
+            });
+        }
+        System.out.println("\nBase directory is gone, stopped watching.");
+    }
+
+    // Runs a backup in the configured format
+    public void runFullBackup() throws IOException {
+        if (format == BackupFormat.STORE) {
+            createSnapshot();
+        } else if (format == BackupFormat.PACK) {
+            createPackBackup();
+        } else {
+            createBackup();
+        }
+    }
+
+    // Backs up only the given entries of the base directory, with the same change detection as a full backup.
+    // Falls back to a full backup when the manifest cannot be trusted (e.g. an earlier batch was interrupted).
+    private void backupChangedFiles(Set<String> changedPaths) throws IOException {
+        BackupManifest manifest = BackupManifest.load(backupDir);
+        if (manifest.isStale()) {
+            createBackup();
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+        AtomicInteger filesCopied = new AtomicInteger();
+        AtomicInteger filesPatched = new AtomicInteger();
+        AtomicLong bytesPatched = new AtomicLong();
+        AtomicInteger filesSkipped = new AtomicInteger();
+        boolean backupHasLinks = BackupManifest.isHardLinked(backupDir);
+        manifest.markInProgress();
+        RunMetrics.Phase phase = metrics.startPhase("changes");
+
+        try (CopyEngine engine = new CopyEngine(threads, phase)) {
+            // The batch is sorted, so every directory is created before the files inside it
+            for (String relativePath : changedPaths) {
+                Path file = baseSaveDir.toPath().resolve(relativePath);
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch (NoSuchFileException e) {
+                    // Written and deleted again within the batch
+                    continue;
+                }
+                if (attrs.isDirectory()) {
+                    Files.createDirectories(backupDir.toPath().resolve(relativePath));
+                } else if (attrs.isRegularFile()) {
+                    engine.submit(() -> {
+                        switch (backupFile(file, relativePath, attrs, manifest, backupHasLinks, null, null, bytesPatched, phase)) {
+                            case PATCHED -> filesPatched.incrementAndGet();
+                            case SKIPPED -> filesSkipped.incrementAndGet();
+                            case VANISHED -> {
+                                // Written and deleted again before it was copied
+                            }
+                            default -> filesCopied.incrementAndGet();
+                        }
+                    });
+                }
+            }
+            engine.awaitCompletion();
+        }
+        manifest.save();
+        phase.end();
+
+        System.out.println(LocalTime.now().truncatedTo(ChronoUnit.SECONDS) + " Changed: " + changedPaths.size()
+                + ", copied: " + filesCopied.get()
+                + (deltaCopy ? ", patched: " + filesPatched.get() + " (" + FileUtils.byteCountToDisplaySize(bytesPatched.get()) + " written)" : "")
+                + ", unchanged: " + filesSkipped.get() + ", time: " + formatDuration(System.currentTimeMillis() - startTime));
+    }
+
+    // Helper to tell a source file that was deleted after the walk saw it (the game drops journals and temporary files
+    // all the time) from a missing backup path, which is a real error
+    private static boolean isVanished(Path source) {
+        return Files.notExists(source, LinkOption.NOFOLLOW_LINKS);
+    }
+
+    // Helper for the backup summaries
+    private static void printVanishedFiles(int filesVanished) {
+        if (filesVanished > 0) {
+            System.out.println("Files vanished: " + filesVanished + " (deleted from the save before they were copied)");
+        }
+    }
+
+    // Helper for the progress total of a backup: the entry count of the previous backup, or a metadata-only count of the
+    // save when there is none. The walk itself cannot serve as the total, since with one thread every file is copied
+    // before the walk moves on and the line would read 100% throughout.
+    private int estimateFiles(int previousEntries) throws IOException {
+        return previousEntries > 0 ? previousEntries : FileWalker.count(baseSaveDir);
+    }
+
+    // Helper to wait until --limit-files/--background allows the next file; the copy itself is paced slice by slice
+    // inside FileCopier, DeltaCopier, SnapshotStore and PackStore, which also report the disk latency to the limiter
+    private void beforeCopy() throws IOException {
+        if (rateLimiter != null) {
+            rateLimiter.acquireFile();
+        }
+    }
+
+    // Helper for the operation summaries: how the adaptive rate limit ended up
+    private void printRateLimitSummary() {
+        if (rateLimiter != null) {
+            String rate = Double.isInfinite(rateLimiter.getBytesPerSecond()) ? "unlimited" : FileUtils.byteCountToDisplaySize((long) rateLimiter.getBytesPerSecond()) + "/s";
+            System.out.println("Rate limit: " + rate + " (backed off " + rateLimiter.getBackoffs() + " times)");
+        }
+    }
+
+    // Helper to hard-link a file from the previous backup if its copy there still matches the source.
+    // Returns false when the file changed or the filesystem refuses links, in which case the caller copies it.
+    private boolean linkUnchangedFile(BackupManifest previousManifest, File previousFile, String relativePath, File destFile, long size, long lastModified) throws IOException {
+        if (!hardLinksSupported.get()) {
+            return false;
+        }
+        BackupManifest.Entry previous = previousManifest.isStale() ? readEntry(previousFile) : previousManifest.get(relativePath);
+        if (previous == null || previous.size != size || previous.lastModified != lastModified) {
+            return false;
+        }
+
+        try {
+            Files.deleteIfExists(destFile.toPath());
+            Files.createLink(destFile.toPath(), previousFile.toPath());
+            return true;
+        } catch (NoSuchFileException e) {
+            // The previous backup lost this file since its manifest was written
+            return false;
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            // Different volume or a filesystem without hard links (e.g. FAT); copy everything from here on
+            if (hardLinksSupported.compareAndSet(true, false)) {
+                System.out.println("\nWarning: hard links are not supported here (" + e.getMessage() + "), copying files instead.");
+            }
+            return false;
+        }
+    }
+
+    // Helper to check that a backup file is not shared with another backup through a hard link before writing into it.
+    // Where the link count is not exposed (e.g. Windows), any backup that was ever part of a --link run is treated as shared.
+    private static boolean isSafeToPatch(Path destFile, boolean backupHasLinks) throws IOException {
+        try {
+            return ((Number) Files.getAttribute(destFile, "unix:nlink")).intValue() == 1;
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            return !backupHasLinks;
+        }
+    }
+
+    // Restores from a directory backup; both trees are walked once and the restore plan does the rest. A partial restore
+    // takes the backup's manifest as its index instead, so fixing a few chunks does not walk the whole backup.
     public void restoreBackup() throws IOException {
         if (!backupDir.exists()) {
             throw new IOException("Backup directory does not exist.");
         }
+        BackupManifest manifest = selection != null ? BackupManifest.load(backupDir) : null;
+        Map<String, BackupManifest.Entry> index = manifest != null && !manifest.isStale() ? manifest.getEntries() : scanTree(backupDir, null);
+        restoreFromIndex(backupDir.getAbsolutePath(), index,
+                (relativePath, stored, destFile) -> FileCopier.copy(new File(backupDir, relativePath).toPath(), destFile.toPath(), stored.size, FileTime.fromMillis(stored.lastModified), rateLimiter));
+    }
+
+    // Stores a new snapshot of the base directory in the object store; only content not already in the store is written
+    public void createSnapshot() throws IOException {
+        if (!baseSaveDir.exists()) {
+            throw new IOException("Base save directory does not exist.");
+        }
 
         long startTime = System.currentTimeMillis();
-        int filesDeleted = 0;
-        int filesRestored = 0;
-        int filesSkipped = 0;
-
-        // Delete files and directories in baseSaveDir that are not present in backupDir
-        Collection<File> baseFiles = FileUtils.listFilesAndDirs(baseSaveDir, TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE);
-        int totalFiles = baseFiles.size();
-        int processedFiles = 0;
-
-        for (File baseFile : baseFiles) {
-            if (!baseFile.equals(baseSaveDir)) {
-                File correspondingFile = new File(backupDir, getRelativePath(baseSaveDir, baseFile));
-                if (!correspondingFile.exists()) {
-                    FileUtils.forceDelete(baseFile);
-                    filesDeleted++;
+        RunMetrics.Phase phase = metrics.startPhase("backup");
+        AtomicInteger filesHashed = new AtomicInteger();
+        AtomicInteger filesUnchanged = new AtomicInteger();
+        AtomicInteger filesVanished = new AtomicInteger();
+        AtomicInteger discoveredFiles = new AtomicInteger();
+        AtomicInteger processedFiles = new AtomicInteger();
+
+        SnapshotStore store = new SnapshotStore(backupDir);
+        int newSnapshotId;
+        // Held until the snapshot is saved, so a prune cannot remove objects this snapshot is about to reference
+        FileChannel storeLock = store.lock();
+        try {
+            int previousId = store.getLatestSnapshotId();
+            // Files whose size and mtime match the previous snapshot keep their hash without being read again
+            BackupManifest previous = store.loadSnapshot(previousId);
+            newSnapshotId = previousId + 1;
+            BackupManifest snapshot = store.loadSnapshot(newSnapshotId);
+            snapshot.markInProgress();
+            int estimatedFiles = estimateFiles(previous.size());
+
+            try (CopyEngine engine = new CopyEngine(threads, phase)) {
+                FileWalker.walk(baseSaveDir, new FileWalker.Visitor() {
+                    @Override
+                    public boolean visitDirectory(Path dir, String relativePath, BasicFileAttributes attrs) {
+                        if (!relativePath.isEmpty()) {
+                            snapshot.put(relativePath, -1, attrs.lastModifiedTime().toMillis(), null);
+                        }
+                        discoveredFiles.incrementAndGet();
+                        processedFiles.incrementAndGet();
+                        return true;
+                    }
+
+                    @Override
+                    public void visitFile(Path file, String relativePath, BasicFileAttributes attrs) throws IOException {
+                        discoveredFiles.incrementAndGet();
+                        engine.submit(() -> {
+                            long size = attrs.size();
+                            long lastModified = attrs.lastModifiedTime().toMillis();
+                            BackupManifest.Entry entry = previous.isStale() ? null : previous.get(relativePath);
+                            if (entry != null && entry.hash != null && entry.size == size && entry.lastModified == lastModified) {
+                                snapshot.put(relativePath, size, lastModified, entry.hash);
+                                filesUnchanged.incrementAndGet();
+                            } else {
+                                beforeCopy();
+                                try {
+                                    snapshot.put(relativePath, size, lastModified, store.putBlob(file, rateLimiter));
+                                    filesHashed.incrementAndGet();
+                                } catch (NoSuchFileException e) {
+                                    if (!isVanished(file)) {
+                                        throw e;
+                                    }
+                                    filesVanished.incrementAndGet();
+                                }
+                            }
+                            printProgress("Backup", processedFiles.incrementAndGet(), Math.max(discoveredFiles.get(), estimatedFiles), startTime, file.toString(), filesHashed.get(), filesUnchanged.get());
+                        });
+                    }
+                });
+                engine.awaitCompletion();
+            }
+            snapshot.save();
+        } finally {
+            storeLock.close();
+        }
+
+        // Ensure final progress is 100%
+        int totalFiles = discoveredFiles.get();
+        finishProgress("Backup", totalFiles, startTime, filesHashed.get(), filesUnchanged.get());
+        phase.addBytes(store.getBytesWritten());
+        phase.end();
+
+        long endTime = System.currentTimeMillis();
+        long totalTime = endTime - startTime;
+        String formattedTime = formatDuration(totalTime);
+        System.out.println("\nSnapshot Summary:");
+        System.out.println("Base directory: " + baseSaveDir.getAbsolutePath());
+        System.out.println("Snapshot store: " + backupDir.getAbsolutePath());
+        System.out.println("Snapshot: " + newSnapshotId);
+        System.out.println("Files hashed: " + filesHashed.get());
+        System.out.println("Files unchanged: " + filesUnchanged.get());
+        printVanishedFiles(filesVanished.get());
+        System.out.println("New objects: " + store.getBlobsWritten() + " (" + FileUtils.byteCountToDisplaySize(store.getBytesWritten()) + ")");
+        printRateLimitSummary();
+        System.out.println("Total time: " + formattedTime);
+    }
+
+    // Appends new and changed files to a fresh pack file; unchanged files keep their place in the existing packs
+    public void createPackBackup() throws IOException {
+        if (!baseSaveDir.exists()) {
+            throw new IOException("Base save directory does not exist.");
+        }
+
+        long startTime = System.currentTimeMillis();
+        RunMetrics.Phase phase = metrics.startPhase("backup");
+        AtomicInteger filesPacked = new AtomicInteger();
+        AtomicInteger filesUnchanged = new AtomicInteger();
+        AtomicInteger filesVanished = new AtomicInteger();
+        AtomicInteger discoveredFiles = new AtomicInteger();
+        AtomicInteger processedFiles = new AtomicInteger();
+
+        PackStore store = PackStore.load(backupDir);
+        // Once more than half of the pack data is dead, write everything into new packs so the old ones can be dropped
+        boolean repack = store.getDeadBytes() > store.getLiveBytes();
+        Map<String, PackStore.Entry> previous = repack ? new HashMap<>() : new HashMap<>(store.getEntries());
+        int estimatedFiles = estimateFiles(store.size());
+        store.clear();
+        store.setCompressionLevel(compressionLevel);
+
+        try (CopyEngine engine = new CopyEngine(threads, phase)) {
+            FileWalker.walk(baseSaveDir, new FileWalker.Visitor() {
+                @Override
+                public boolean visitDirectory(Path dir, String relativePath, BasicFileAttributes attrs) {
+                    if (!relativePath.isEmpty()) {
+                        store.putDirectory(relativePath, attrs.lastModifiedTime().toMillis());
+                    }
+                    discoveredFiles.incrementAndGet();
+                    processedFiles.incrementAndGet();
+                    return true;
                 }
+
+                @Override
+                public void visitFile(Path file, String relativePath, BasicFileAttributes attrs) throws IOException {
+                    discoveredFiles.incrementAndGet();
+                    engine.submit(() -> {
+                        long size = attrs.size();
+                        long lastModified = attrs.lastModifiedTime().toMillis();
+                        PackStore.Entry entry = previous.get(relativePath);
+                        if (entry != null && !entry.isDirectory() && entry.size == size && entry.lastModified == lastModified) {
+                            store.put(relativePath, entry);
+                            filesUnchanged.incrementAndGet();
+                        } else {
+                            beforeCopy();
+                            try {
+                                store.put(relativePath, store.append(file, size, lastModified, rateLimiter));
+                                phase.addBytes(size);
+                                filesPacked.incrementAndGet();
+                            } catch (NoSuchFileException e) {
+                                if (!isVanished(file)) {
+                                    throw e;
+                                }
+                                filesVanished.incrementAndGet();
+                            }
+                        }
+                        printProgress("Backup", processedFiles.incrementAndGet(), Math.max(discoveredFiles.get(), estimatedFiles), startTime, file.toString(), filesPacked.get(), filesUnchanged.get());
+                    });
+                }
+            });
+            engine.awaitCompletion();
+        }
+        store.save();
+
+        // Ensure final progress is 100%
+        int totalFiles = discoveredFiles.get();
+        finishProgress("Backup", totalFiles, startTime, filesPacked.get(), filesUnchanged.get());
+        phase.end();
+
+        long endTime = System.currentTimeMillis();
+        long totalTime = endTime - startTime;
+        String formattedTime = formatDuration(totalTime);
+        System.out.println("\nBackup Summary:");
+        System.out.println("Base directory: " + baseSaveDir.getAbsolutePath());
+        System.out.println("Pack directory: " + backupDir.getAbsolutePath() + (repack ? " (repacked)" : ""));
+        System.out.println("Files packed: " + filesPacked.get());
+        System.out.println("Files unchanged: " + filesUnchanged.get());
+        printVanishedFiles(filesVanished.get());
+        printRateLimitSummary();
+        System.out.println("Total time: " + formattedTime);
+    }
+
+    // Rebuilds the base directory from a snapshot manifest, deleting anything the snapshot does not contain
+    public void restoreSnapshot() throws IOException {
+        SnapshotStore store = new SnapshotStore(backupDir);
+        int restoredSnapshotId = resolveSnapshotId(store);
+        BackupManifest snapshot = loadCompleteSnapshot(store, restoredSnapshotId);
+        restoreFromIndex(backupDir.getAbsolutePath() + " (snapshot " + restoredSnapshotId + ")", snapshot.getEntries(),
+                (relativePath, stored, destFile) -> store.restoreBlob(stored.hash, destFile, stored.size, stored.lastModified, rateLimiter));
+    }
+
+    // Rebuilds the base directory from the pack index, extracting files straight out of the pack files
+    public void restorePackBackup() throws IOException {
+        PackStore store = PackStore.load(backupDir);
+        if (!store.exists()) {
+            throw new IOException("Pack backup does not exist.");
+        }
+        Map<String, BackupManifest.Entry> index = new HashMap<>();
+        for (Map.Entry<String, PackStore.Entry> entry : store.getEntries().entrySet()) {
+            PackStore.Entry packed = entry.getValue();
+            index.put(entry.getKey(), new BackupManifest.Entry(packed.size, packed.lastModified, packed.crc));
+        }
+        restoreFromIndex(backupDir.getAbsolutePath(), index,
+                (relativePath, stored, destFile) -> store.extract(store.get(relativePath), destFile.toPath(), rateLimiter));
+    }
+
+    // Deletes the ordinal backups (Dan-1, Dan-2, ...) that the retention policy does not keep. Expired backups are first
+    // renamed out of the way and dropped from the catalog, then deleted in parallel, so an interrupted prune never leaves a
+    // half-deleted backup that looks valid; the next prune finishes the job. Space is only freed for files that no other
+    // backup links to, which the summary reports separately.
+    public void pruneBackups(RetentionPolicy policy) throws IOException {
+        long startTime = System.currentTimeMillis();
+        BackupCatalog catalog = BackupCatalog.load(baseSaveDir.getPath());
+        Map<Integer, Long> timestamps = new HashMap<>();
+        for (BackupCatalog.Entry entry : catalog.getEntries().values()) {
+            timestamps.put(entry.ordinal, entry.timestamp);
+        }
+        Set<Integer> keep = policy.select(timestamps);
+        List<BackupCatalog.Entry> expired = new ArrayList<>();
+        for (BackupCatalog.Entry entry : catalog.getEntries().values()) {
+            if (!keep.contains(entry.ordinal)) {
+                expired.add(entry);
             }
-            processedFiles++;
-            printProgress("Restore (Deleting)", processedFiles, totalFiles, startTime, baseFile.getPath(), filesDeleted, filesRestored);
         }
 
-        // Copy files and directories from backupDir to baseSaveDir, overwriting existing files if they are older or do not exist
-        Collection<File> backupFiles = FileUtils.listFilesAndDirs(backupDir, TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE);
-        totalFiles = backupFiles.size();
-        processedFiles = 0;
+        if (dryRun) {
+            System.out.println("\nPrune Plan (retention: " + policy + "):");
+            for (BackupCatalog.Entry entry : catalog.getEntries().values()) {
+                System.out.println((keep.contains(entry.ordinal) ? "  keep    " : "  remove  ") + describeBackup(catalog, entry));
+            }
+            System.out.println("Backups to remove: " + expired.size() + " of " + timestamps.size());
+            return;
+        }
+
+        List<File> toDelete = new ArrayList<>(Arrays.asList(catalog.findPruningDirectories()));
+        for (BackupCatalog.Entry entry : expired) {
+            File dir = catalog.getDirectory(entry.ordinal);
+            if (dir.exists()) {
+                File pruningDir = catalog.getPruningDirectory(entry.ordinal);
+                Files.move(dir.toPath(), pruningDir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                toDelete.add(pruningDir);
+            }
+            catalog.remove(entry.ordinal);
+            if (verbose) {
+                System.out.println("Removing " + describeBackup(catalog, entry));
+            }
+        }
+        catalog.save();
+
+        AtomicInteger filesDeleted = new AtomicInteger();
+        AtomicInteger filesShared = new AtomicInteger();
+        AtomicLong bytesFreed = new AtomicLong();
+        try (CopyEngine engine = new CopyEngine(threads, metrics.startPhase("prune"))) {
+            for (File dir : toDelete) {
+                deleteBackupTree(dir.toPath(), BackupManifest.isHardLinked(dir), engine, filesDeleted, filesShared, bytesFreed);
+            }
+        }
+
+        long totalTime = System.currentTimeMillis() - startTime;
+        System.out.println("\nPrune Summary:");
+        System.out.println("Base directory: " + baseSaveDir.getAbsolutePath());
+        System.out.println("Retention: " + policy);
+        System.out.println("Backups removed: " + expired.size() + ", kept: " + catalog.getEntries().size());
+        System.out.println("Files deleted: " + filesDeleted.get() + " (" + filesShared.get() + " still linked from other backups)");
+        System.out.println("Space freed: " + FileUtils.byteCountToDisplaySize(bytesFreed.get()));
+        System.out.println("Total time: " + formatDuration(totalTime));
+    }
+
+    // Helper for prune: deletes the files of a backup on the workers, then its directories deepest first. A file only
+    // frees space if no other backup links to it.
+    private void deleteBackupTree(Path root, boolean backupHasLinks, CopyEngine engine, AtomicInteger filesDeleted, AtomicInteger filesShared, AtomicLong bytesFreed) throws IOException {
+        List<Path> directories = new ArrayList<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                engine.submit(() -> {
+                    // The link count is read just before the delete; when two pruned backups share a file, one of them frees it
+                    boolean shared = !isSafeToPatch(file, backupHasLinks);
+                    Files.deleteIfExists(file);
+                    filesDeleted.incrementAndGet();
+                    if (shared) {
+                        filesShared.incrementAndGet();
+                    } else {
+                        bytesFreed.addAndGet(attrs.size());
+                    }
+                });
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                if (e != null) {
+                    throw e;
+                }
+                directories.add(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        engine.awaitCompletion();
+        for (Path dir : directories) {
+            Files.deleteIfExists(dir);
+        }
+    }
 
-        for (File backupFile : backupFiles) {
-            File destFile = new File(baseSaveDir, getRelativePath(backupDir, backupFile));
-            if (backupFile.isDirectory()) {
-                destFile.mkdirs();
+    // Helper for the prune output: name, time, size and file count of a backup
+    private static String describeBackup(BackupCatalog catalog, BackupCatalog.Entry entry) {
+        String time = LocalDateTime.ofInstant(Instant.ofEpochMilli(entry.timestamp), ZoneId.systemDefault()).truncatedTo(ChronoUnit.MINUTES).toString().replace('T', ' ');
+        return catalog.getDirectory(entry.ordinal).getName() + "  " + time + "  " + FileUtils.byteCountToDisplaySize(entry.size)
+                + " in " + entry.files + " files" + (entry.linked ? " (hard-linked)" : "");
+    }
+
+    // Deletes the snapshots the retention policy does not keep, then every object no remaining snapshot refers to.
+    // Objects are shared between snapshots, so they are only deleted under the store lock, which every backup holds
+    // while it writes a snapshot, and only while no snapshot is marked as being written.
+    public void pruneSnapshots(RetentionPolicy policy) throws IOException {
+        long startTime = System.currentTimeMillis();
+        SnapshotStore store = new SnapshotStore(backupDir);
+        Map<Integer, Long> timestamps = new HashMap<>();
+        for (int id : store.getSnapshotIds()) {
+            if (!store.loadSnapshot(id).isStale()) {
+                timestamps.put(id, store.getSnapshotFile(id).lastModified());
+            }
+        }
+        Set<Integer> keep = policy.select(timestamps);
+        List<Integer> expired = new ArrayList<>();
+        for (int id : timestamps.keySet()) {
+            if (!keep.contains(id)) {
+                expired.add(id);
+            }
+        }
+        expired.sort(null);
+
+        if (dryRun) {
+            System.out.println("\nPrune Plan (retention: " + policy + "):");
+            System.out.println("Snapshots to remove: " + (expired.isEmpty() ? "none" : expired) + " of " + timestamps.size());
+            return;
+        }
+
+        for (int id : expired) {
+            store.deleteSnapshot(id);
+        }
+        try (FileChannel storeLock = store.tryLock()) {
+            // Listed again under the lock: a snapshot finished since the listing above keeps its objects, and markers
+            // of snapshots being written (e.g. by a version without the lock) still hold the sweep back
+            Set<Integer> inProgress = new TreeSet<>(store.getInProgressSnapshotIds());
+            Set<String> referenced = new HashSet<>();
+            for (int id : storeLock != null ? store.getSnapshotIds() : List.<Integer>of()) {
+                BackupManifest snapshot = store.loadSnapshot(id);
+                if (snapshot.isStale()) {
+                    inProgress.add(id);
+                }
+                for (BackupManifest.Entry entry : snapshot.getEntries().values()) {
+                    if (entry.hash != null) {
+                        referenced.add(entry.hash);
+                    }
+                }
+            }
+            if (storeLock == null) {
+                System.out.println("Warning: a backup is writing to the snapshot store, unused objects were not removed.");
+            } else if (!inProgress.isEmpty()) {
+                System.out.println("Warning: snapshot " + inProgress + " is incomplete or still being written, unused objects were not removed.");
             } else {
-                if (!destFile.exists() || FileUtils.isFileOlder(backupFile, destFile)) {
-                    FileUtils.copyFile(backupFile, destFile);
-                    filesRestored++;
-                } else {
-                    filesSkipped++;
+                try (CopyEngine engine = new CopyEngine(threads, metrics.startPhase("prune"))) {
+                    store.removeUnreferencedBlobs(referenced, engine);
                 }
             }
-            processedFiles++;
-            printProgress("Restore (Copying)", processedFiles, totalFiles, startTime, backupFile.getPath(), filesRestored, filesSkipped);
+        }
+
+        long totalTime = System.currentTimeMillis() - startTime;
+        System.out.println("\nPrune Summary:");
+        System.out.println("Snapshot store: " + backupDir.getAbsolutePath());
+        System.out.println("Retention: " + policy);
+        System.out.println("Snapshots removed: " + expired.size() + (expired.isEmpty() ? "" : " " + expired) + ", kept: " + keep.size());
+        System.out.println("Objects removed: " + store.getBlobsRemoved() + " (" + FileUtils.byteCountToDisplaySize(store.getBytesRemoved()) + " freed)");
+        System.out.println("Total time: " + formatDuration(totalTime));
+    }
+
+    private interface IndexedFileRestorer {
+        void restore(String relativePath, BackupManifest.Entry stored, File destFile) throws IOException;
+    }
+
+    // Makes the base directory match an index of the backup contents. The base directory is walked once, the
+    // difference is planned up front, and the plan runs in parallel: deletes first, then directories, then files whose
+    // size or mtime differs. With --file, --region or --class only the selected entries are looked at and restored, and
+    // nothing is deleted; with --dry-run the plan is only printed.
+    private void restoreFromIndex(String sourceDescription, Map<String, BackupManifest.Entry> index, IndexedFileRestorer restorer) throws IOException {
+        long startTime = System.currentTimeMillis();
+        SortedMap<String, BackupManifest.Entry> backup = RestorePlan.newTree();
+        for (Map.Entry<String, BackupManifest.Entry> entry : index.entrySet()) {
+            if (selection == null || selection.matches(entry.getKey())) {
+                backup.put(entry.getKey(), entry.getValue());
+            }
+        }
+        if (selection != null && backup.isEmpty()) {
+            throw new IOException("Nothing in the backup matches " + selection + ".");
+        }
+
+        SortedMap<String, BackupManifest.Entry> base;
+        if (selection == null) {
+            base = baseSaveDir.exists() ? scanTree(baseSaveDir, backup) : RestorePlan.newTree();
+        } else {
+            // Only the selected entries matter and nothing else gets deleted, so stat just those
+            base = RestorePlan.newTree();
+            for (String relativePath : backup.keySet()) {
+                BackupManifest.Entry current = readEntry(new File(baseSaveDir, relativePath));
+                if (current != null) {
+                    base.put(relativePath, current);
+                }
+            }
+        }
+        RestorePlan plan = RestorePlan.build(backup, base, selection == null);
+        if (dryRun) {
+            printPlan(plan, sourceDescription);
+            return;
+        }
+
+        RunMetrics.Phase phase = metrics.startPhase("restore");
+        AtomicInteger filesDeleted = new AtomicInteger();
+        AtomicInteger filesRestored = new AtomicInteger();
+        AtomicInteger processedFiles = new AtomicInteger();
+        int totalFiles = plan.getDeletes().size() + plan.getFiles().size();
+
+        try (CopyEngine engine = new CopyEngine(threads, phase)) {
+            for (RestorePlan.Step step : plan.getDeletes()) {
+                engine.submit(() -> {
+                    File file = new File(baseSaveDir, step.relativePath);
+                    if (step.entry.isDirectory()) {
+                        FileUtils.forceDelete(file);
+                    } else {
+                        Files.delete(file.toPath());
+                    }
+                    filesDeleted.incrementAndGet();
+                    printProgress("Restore (Deleting)", processedFiles.incrementAndGet(), totalFiles, startTime, file.getPath(), filesRestored.get(), filesDeleted.get());
+                });
+            }
+            engine.awaitCompletion();
+
+            for (RestorePlan.Step step : plan.getDirectories()) {
+                Files.createDirectories(baseSaveDir.toPath().resolve(step.relativePath));
+            }
+            for (RestorePlan.Step step : plan.getFiles()) {
+                engine.submit(() -> {
+                    File destFile = new File(baseSaveDir, step.relativePath);
+                    beforeCopy();
+                    restorer.restore(step.relativePath, step.entry, destFile);
+                    phase.addBytes(step.entry.size);
+                    filesRestored.incrementAndGet();
+                    printProgress("Restore (Copying)", processedFiles.incrementAndGet(), totalFiles, startTime, destFile.getPath(), filesRestored.get(), filesDeleted.get());
+                });
+            }
+            engine.awaitCompletion();
         }
 
         // Ensure final progress is 100%
-        printProgress("Restore", totalFiles, totalFiles, startTime, "", filesRestored, filesSkipped);
+        finishProgress("Restore", totalFiles, startTime, filesRestored.get(), filesDeleted.get());
+        phase.end();
 
         long endTime = System.currentTimeMillis();
         long totalTime = endTime - startTime;
         String formattedTime = formatDuration(totalTime);
         System.out.println("\nRestore Summary:");
         System.out.println("Base directory: " + baseSaveDir.getAbsolutePath());
-        System.out.println("Backup directory: " + backupDir.getAbsolutePath());
-        System.out.println("Files restored: " + filesRestored);
-        System.out.println("Files deleted: " + filesDeleted);
-        System.out.println("Files skipped: " + filesSkipped);
+        System.out.println("Backup directory: " + sourceDescription);
+        if (selection != null) {
+            System.out.println("Restored only: " + selection);
+        }
+        System.out.println("Files restored: " + filesRestored.get() + " (" + FileUtils.byteCountToDisplaySize(plan.getBytesToCopy()) + ")");
+        System.out.println("Files deleted: " + filesDeleted.get());
+        System.out.println("Files skipped: " + plan.getUnchangedFiles());
+        printRateLimitSummary();
         System.out.println("Total time: " + formattedTime);
     }
 
-    // Helper to get the relative path
-    private String getRelativePath(File base, File child) {
-        return base.toURI().relativize(child.toURI()).getPath();
+    // Helper for --dry-run: lists every planned step and the totals without touching the base directory
+    private void printPlan(RestorePlan plan, String sourceDescription) {
+        System.out.println("\nRestore plan (dry run):");
+        for (RestorePlan.Step step : plan.getDeletes()) {
+            System.out.println("  delete     " + step.relativePath + (step.entry.isDirectory() ? "/" : ""));
+        }
+        for (RestorePlan.Step step : plan.getDirectories()) {
+            System.out.println("  create     " + step.relativePath + "/");
+        }
+        for (RestorePlan.Step step : plan.getFiles()) {
+            System.out.println("  " + (step.action == RestorePlan.Action.CREATE ? "create     " : "overwrite  ") + step.relativePath);
+        }
+        System.out.println("\nRestore Plan Summary:");
+        System.out.println("Base directory: " + baseSaveDir.getAbsolutePath());
+        System.out.println("Backup directory: " + sourceDescription);
+        System.out.println("Entries to delete: " + plan.getDeletes().size());
+        System.out.println("Directories to create: " + plan.getDirectories().size());
+        System.out.println("Files to restore: " + plan.getFiles().size() + " (" + FileUtils.byteCountToDisplaySize(plan.getBytesToCopy()) + ")");
+        System.out.println("Files unchanged: " + plan.getUnchangedFiles());
+        System.out.println("Nothing was changed.");
+    }
+
+    // Helper to list a directory tree for a restore plan. With a backup tree given, directories the backup does not
+    // have are listed but not descended into, since they are deleted as a whole.
+    private static SortedMap<String, BackupManifest.Entry> scanTree(File root, SortedMap<String, BackupManifest.Entry> backup) throws IOException {
+        SortedMap<String, BackupManifest.Entry> tree = RestorePlan.newTree();
+        FileWalker.walk(root, new FileWalker.Visitor() {
+            @Override
+            public boolean visitDirectory(Path dir, String relativePath, BasicFileAttributes attrs) {
+                if (relativePath.isEmpty()) {
+                    return true;
+                }
+                tree.put(relativePath, toEntry(attrs));
+                if (backup == null) {
+                    return true;
+                }
+                BackupManifest.Entry stored = backup.get(relativePath);
+                return stored != null && stored.isDirectory();
+            }
+
+            @Override
+            public void visitFile(Path file, String relativePath, BasicFileAttributes attrs) {
+                tree.put(relativePath, toEntry(attrs));
+            }
+        });
+        return tree;
+    }
+
+    // Helper to pick the requested snapshot, or the latest one if none was given
+    private int resolveSnapshotId(SnapshotStore store) throws IOException {
+        int resolvedId = snapshotId > 0 ? snapshotId : store.getLatestSnapshotId();
+        if (resolvedId == 0 || !store.getSnapshotFile(resolvedId).isFile()) {
+            throw new IOException("Snapshot " + (resolvedId == 0 ? "" : resolvedId + " ") + "does not exist in " + backupDir.getAbsolutePath());
+        }
+        return resolvedId;
+    }
+
+    // Helper to load a snapshot manifest, refusing one left behind by an interrupted backup
+    private static BackupManifest loadCompleteSnapshot(SnapshotStore store, int id) throws IOException {
+        BackupManifest snapshot = store.loadSnapshot(id);
+        if (snapshot.isStale()) {
+            throw new IOException("Snapshot " + id + " is incomplete or unreadable.");
+        }
+        return snapshot;
+    }
+
+    // Helper to read the size and mtime of a file with a single stat, or null if it does not exist
+    private static BackupManifest.Entry readEntry(File file) throws IOException {
+        try {
+            return toEntry(Files.readAttributes(file.toPath(), BasicFileAttributes.class));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    // Helper to describe a file or directory the way manifests do; directories have a negative size
+    private static BackupManifest.Entry toEntry(BasicFileAttributes attrs) {
+        return new BackupManifest.Entry(attrs.isDirectory() ? -1 : attrs.size(), attrs.lastModifiedTime().toMillis(), null);
     }
 
     // Helper to format duration from milliseconds to minutes and seconds
     private String formatDuration(long durationMillis) {
-        long minutes = TimeUnit.MILLISECONDS.toMinutes(durationMillis);
-        long seconds = TimeUnit.MILLISECONDS.toSeconds(durationMillis) - TimeUnit.MINUTES.toSeconds(minutes);
-        return String.format("%d min, %d sec", minutes, seconds);
+        return ProgressReporter.formatDuration(durationMillis);
     }
 
-    // Helper to determine the last existing ordinal backup directory
-    private static String getLastBackupDirectory(String baseBackupPath) {
-        int counter = 1;
-        String lastBackupPath = baseBackupPath + "-" + counter;
-        while (new File(baseBackupPath + "-" + counter).exists()) {
-            lastBackupPath = baseBackupPath + "-" + counter;
-            counter++;
+    // Backs up every save found under the given directory in one run; the manager only carries the settings
+    private static void runBatch(PZSaver manager, File savesRoot, int threads, boolean verbose, boolean noPrompt, boolean skipOperation,
+                                 boolean testRequested, boolean deepTest, boolean collectMetrics) {
+        try {
+            BatchBackup batch = new BatchBackup(savesRoot, manager, threads, verbose);
+            if (batch.getSaveCount() == 0) {
+                System.out.println("No saves found in " + savesRoot.getAbsolutePath());
+                return;
+            }
+            if (!noPrompt) {
+                batch.printPlan();
+            }
+            if (!manager.getApproval(BATCH, testRequested, deepTest, null)) {
+                System.out.println("Operation aborted by the user.");
+                return;
+            }
+            batch.run(skipOperation, testRequested, deepTest, collectMetrics);
+        } catch (IOException e) {
+            e.printStackTrace();
         }
-        return lastBackupPath;
+    }
+
+    // Helper to determine the backup path when none is given
+    private static String resolveBackupPath(String command, BackupFormat format, boolean createNewBackup, String baseSavePath) {
+        if (format == BackupFormat.STORE) {
+            return baseSavePath + STORE_SUFFIX;
+        } else if (format == BackupFormat.PACK) {
+            return baseSavePath + PACK_SUFFIX;
+        } else if (!command.equals(RESTORE) && createNewBackup) {
+            return getNextBackupDirectory(baseSavePath);
+        } else {
+            return getLastBackupDirectory(baseSavePath);
+        }
+    }
+
+    // Helper to determine the last existing ordinal backup directory, looked up in the backup catalog
+    private static String getLastBackupDirectory(String baseBackupPath) {
+        BackupCatalog catalog = BackupCatalog.load(baseBackupPath);
+        return catalog.getDirectory(Math.max(1, catalog.getLatestOrdinal())).getPath();
     }
 
     // Helper to determine the next ordinal backup directory
     private static String getNextBackupDirectory(String baseBackupPath) {
-        int counter = 1;
-        while (new File(baseBackupPath + "-" + counter).exists()) {
-            counter++;
-        }
-        return baseBackupPath + "-" + counter;
+        BackupCatalog catalog = BackupCatalog.load(baseBackupPath);
+        return catalog.getDirectory(catalog.getNextOrdinal()).getPath();
     }
 
     private static void printUsage() {
-        System.out.println("Usage: java PZSaver <backup|restore> <baseSavePath> [<backupPath>] [-v|--verbose] [-np|--noprompt] [-n|--new] [-t|--test [deep|shallow]] [-s|--skip]");
+        System.out.println("Usage: java PZSaver <backup|restore|watch|batch|prune> <baseSavePath> [<backupPath>] [-v|--verbose] [-np|--noprompt] [-n|--new] [-t|--test [deep|shallow]] [-s|--skip] [-j|--threads <count>] [-f|--format <directory|store|pack>] [--snapshot <id>] [-l|--link] [-d|--delta] [--hash <crc32c|sha256>] [--full] [--file <path>] [--region <x1,y1:x2,y2>] [--class <players|vehicles|zones>] [-c|--compress <level>] [--debounce <seconds>] [--consistent [passes]] [--dry-run] [--metrics json] [--limit <MB/s>] [--limit-files <files/s>] [--background] [--keep-last <n>] [--keep-hourly <n>] [--keep-daily <n>] [--keep-weekly <n>]");
         System.out.println("Use -h or --help for detailed instructions.");
     }
 
     private static void printHelp() {
-        System.out.println("Usage: java PZSaver <backup|restore> <baseSavePath> [<backupPath>] [-v|--verbose] [-np|--noprompt] [-n|--new] [-t|--test [deep|shallow]] [-s|--skip]");
+        System.out.println("Usage: java PZSaver <backup|restore|watch|batch|prune> <baseSavePath> [<backupPath>] [-v|--verbose] [-np|--noprompt] [-n|--new] [-t|--test [deep|shallow]] [-s|--skip] [-j|--threads <count>] [-f|--format <directory|store|pack>] [--snapshot <id>] [-l|--link] [-d|--delta] [--hash <crc32c|sha256>] [--full] [--file <path>] [--region <x1,y1:x2,y2>] [--class <players|vehicles|zones>] [-c|--compress <level>] [--debounce <seconds>] [--consistent [passes]] [--dry-run] [--metrics json] [--limit <MB/s>] [--limit-files <files/s>] [--background] [--keep-last <n>] [--keep-hourly <n>] [--keep-daily <n>] [--keep-weekly <n>]");
         System.out.println("\nVersion 0.2 - Use at your own risk. I am not liable for any problem that will arise.");
         System.out.println("\nCommands:");
         System.out.println("  backup     Create a differential backup from the base save directory to the backup directory.");
         System.out.println("  restore    Restore the base save directory from the backup directory, making it identical to the backup.");
+        System.out.println("  watch      Back up once, then keep backing up the files the game changes until stopped with Ctrl+C.");
+        System.out.println("  batch      Back up every save found in a Saves directory (given as <baseSavePath>) in one run.");
+        System.out.println("  prune      Delete the backups (or store snapshots) of a save that the --keep-* retention flags do not keep.");
         System.out.println("\nParameters:");
         System.out.println("  <baseSavePath>   The path to the base save directory.");
         System.out.println("  <backupPath>     The path to the backup directory. If omitted, the last existing directory will be used (e.g., Dan-1, Dan-2).");
@@ -239,168 +1248,310 @@ public class PZSaver {
         System.out.println("  -v, --verbose    Enable verbose output, showing detailed information about each file operation.");
         System.out.println("  -np, --noprompt  Bypass the approval prompt before starting the operation.");
         System.out.println("  -n, --new        Create a new backup directory, copying all files (full backup).");
+        System.out.println("  -l, --link       With --new, hard-link files unchanged since the previous backup instead of copying them.");
+        System.out.println("  -d, --delta      Update large changed files (4 MB and up) in place, rewriting only the blocks that differ.");
+        System.out.println("  --consistent     Directory format only: re-check the save after copying and re-copy files that changed meanwhile, up to [passes] times (default 5).");
         System.out.println("  -t, --test       Run a test to compare the file counts or file contents.");
         System.out.println("                   Use 'deep' to enable deep test (compare file contents). Default is 'shallow'.");
+        System.out.println("  --hash           Hash computed by the deep test: 'crc32c' (default, fast) or 'sha256'.");
+        System.out.println("  --full           Make the deep test read every file, even those unchanged since the last verified run.");
         System.out.println("  -s, --skip       Skip the main backup or restore operation and only run tests.");
+        System.out.println("  -j, --threads    Number of worker threads used to compare and copy files (default 1, 0 = one per CPU core).");
+        System.out.println("  -f, --format     Backup format: 'directory' (default, plain copy), 'store' (deduplicated snapshots) or 'pack' (pack files).");
+        System.out.println("  --snapshot       Snapshot number to restore or test in store format. Default is the latest snapshot.");
+        System.out.println("  --file           Restore only this file or directory (relative to the save directory).");
+        System.out.println("  --region         Restore only the map_X_Y.bin chunk files in this coordinate range (x,y or x1,y1:x2,y2).");
+        System.out.println("  --class          Restore only this kind of save file: 'players', 'vehicles' or 'zones'.");
+        System.out.println("  --dry-run        Print the restore plan (files to delete, create and overwrite, bytes to copy) or the backups prune would delete, without changing anything.");
+        System.out.println("  -c, --compress   In pack format, compress new and changed files with Deflate level 0-9 (1 = fastest, 9 = smallest).");
+        System.out.println("  --debounce       In watch mode, seconds without changes before a batch of changed files is backed up (default 5).");
+        System.out.println("  --metrics        With 'json', print per-phase timings, bytes copied, files/s, MB/s and per-file latency histograms as one JSON line at the end.");
+        System.out.println("  --limit          Copy at most this many megabytes per second; the rate backs off further while disk latency is rising.");
+        System.out.println("  --limit-files    Copy at most this many files per second.");
+        System.out.println("  --background     Back off when disk latency rises even without --limit, for backups of a running server.");
+        System.out.println("  --keep-last      With prune, keep the newest <n> backups.");
+        System.out.println("  --keep-hourly    With prune, keep the newest backup of each of the last <n> hours that have one.");
+        System.out.println("  --keep-daily     With prune, keep the newest backup of each of the last <n> days that have one.");
+        System.out.println("  --keep-weekly    With prune, keep the newest backup of each of the last <n> weeks that have one.");
         System.out.println("  -h, --help       Display this help message and exit.");
         System.out.println("\nExamples:");
         System.out.println("  java PZSaver backup C:\\path\\to\\Dan");
         System.out.println("  java PZSaver backup C:\\path\\to\\Dan -v");
         System.out.println("  java PZSaver restore C:\\path\\to\\Dan [C:\\path\\to\\Dan-1] -np");
+        System.out.println("  java PZSaver restore C:\\path\\to\\Dan --region 1030,950:1045,960 --class players");
         System.out.println("  java PZSaver backup C:\\path\\to\\Dan -n");
+        System.out.println("  java PZSaver backup C:\\path\\to\\Dan -j 8");
+        System.out.println("  java PZSaver watch C:\\path\\to\\Dan -np");
+        System.out.println("  java PZSaver batch C:\\path\\to\\Saves -j 8 -np");
+        System.out.println("  java PZSaver prune C:\\path\\to\\Dan --keep-last 5 --keep-daily 7 --keep-weekly 4");
         System.out.println("\nBackup Options:");
         System.out.println("  If <backupPath> is omitted, the last existing backup directory will be used as the target directory.");
         System.out.println("  If the --new flag is used, a new backup directory will be created (e.g., Dan-3 for full backup).");
+        System.out.println("  Adding --link makes the new directory share unchanged files with the previous one, so it only costs the changed data.");
+        System.out.println("  Each backup keeps a manifest in its .pzsaver folder, so later backups only need to scan the base directory.");
+        System.out.println("  Use --consistent while a server is running: the save is checked again until a pass finds no changes,");
+        System.out.println("  and the summary shows the time window the backup is consistent for.");
+        System.out.println("\nWatch Mode:");
+        System.out.println("  Watch mode runs a normal backup first and then listens for file system events in the save directory.");
+        System.out.println("  Changed files are collected until the game has stopped writing for the debounce interval and only those are copied.");
+        System.out.println("  If the operating system drops events, the whole save is rescanned.");
+        System.out.println("  In store and pack format, every batch of changes runs a full backup (a new snapshot or pack).");
+        System.out.println("\nBatch Mode:");
+        System.out.println("  Batch mode looks for saves up to three levels below the given directory (e.g., Saves/Survivor/Dan) and backs");
+        System.out.println("  each one up as if it was given on its own, next to the save (Dan-1, Dan-store, ...). Existing backups are skipped.");
+        System.out.println("  Saves on different disks are backed up side by side, saves on the same disk one after another, and the");
+        System.out.println("  --threads workers are shared out among the disks still busy. One report for all saves is printed at the end;");
+        System.out.println("  with --verbose (or when a save fails) the full output of each save is included.");
+        System.out.println("\nPruning:");
+        System.out.println("  Ordinal backups are listed with their time and size in <baseSavePath>-backups.tsv (e.g., Dan-backups.tsv), which");
+        System.out.println("  is rebuilt from the backup directories if it goes missing. Prune keeps every backup any --keep-* rule asks for,");
+        System.out.println("  and always the latest one; the rest are deleted. Files hard-linked from other backups (--link) only free space");
+        System.out.println("  once no backup links them. With --format store, expired snapshots are deleted along with the objects no");
+        System.out.println("  remaining snapshot uses; while a backup is writing to the store, the objects are left for the next prune.");
+        System.out.println("  Use --dry-run to see what would be deleted.");
+        System.out.println("\nStore Format:");
+        System.out.println("  If <backupPath> is omitted, <baseSavePath>-store is used (e.g., Dan-store).");
+        System.out.println("  Every backup adds a new snapshot; file contents are stored once and shared between snapshots.");
+        System.out.println("\nPack Format:");
+        System.out.println("  If <backupPath> is omitted, <baseSavePath>-pack is used (e.g., Dan-pack).");
+        System.out.println("  Files are appended to a few large pack files with an index, instead of one backup file per chunk.");
+        System.out.println("  With --compress, files are compressed in 1 MB blocks on all cores and decompressed transparently on restore.");
         System.out.println("\nRestore Options:");
         System.out.println("  If <backupPath> is omitted, the last existing backup directory will be used as the source directory.");
         System.out.println("  If <backupPath> is provided, the specified directory will be used as the source directory.");
+        System.out.println("  The base directory is compared with the backup once up front; only files whose size or modification time differ");
+        System.out.println("  are copied, and directories missing from the backup are deleted as a whole.");
+        System.out.println("  --file, --region and --class can be given several times and combined; only matching files are restored and");
+        System.out.println("  nothing is deleted. Directory backups then look the files up in the backup's manifest instead of walking it.");
+        System.out.println("  'players' is players.db and map_p.bin, 'vehicles' is vehicles.db and 'zones' is map_zone.bin and map_meta.bin.");
     }
 
+    // Publishes the current state to the progress line, which a timer thread redraws a few times per second
     private void printProgress(String operation, int processedFiles, int totalFiles, long startTime, String filePath, int filesProcessed1, int filesProcessed2) {
-        int progressPercentage = (int) (((double) processedFiles / totalFiles) * 100);
-        long currentTime = System.currentTimeMillis();
-        long elapsedTime = currentTime - startTime;
-        long estimatedTotalTime = (long) ((elapsedTime / (double) processedFiles) * totalFiles);
-        long estimatedRemainingTime = estimatedTotalTime - elapsedTime;
-
-        String formattedElapsedTime = formatDuration(elapsedTime);
-        String formattedRemainingTime = formatDuration(estimatedRemainingTime);
-
-        // Ensure progress is 100% when the operation is complete
-        if (processedFiles == totalFiles) {
-            progressPercentage = 100;
-        }
-
-        String progressMessage = String.format("\r%s Progress: %d%% | Elapsed: %s | Remaining: %s",
-                operation, progressPercentage, formattedElapsedTime, formattedRemainingTime);
-
-        if (operation.contains("Test")) {
-            String fileMessage = String.format(" | File: %s | matched: %d, mismatched: %d",
-                    filePath, filesProcessed1, filesProcessed2);
-            System.out.print(progressMessage + fileMessage);
-        } else if (verbose) {
-            String fileMessage = String.format(" | File: %s | %s: %d, %s: %d",
-                    filePath, operation.equals("Backup") ? "copied" : "restored", filesProcessed1, operation.equals("Backup") ? "skipped" : "deleted", filesProcessed2);
-            System.out.print(progressMessage + fileMessage);
-        } else {
-            System.out.print(progressMessage);
+        progress.update(operation, processedFiles, totalFiles, startTime, filePath, filesProcessed1, filesProcessed2);
+    }
+
+    // Prints the 100% progress line of a finished operation before its summary
+    private void finishProgress(String operation, int totalFiles, long startTime, int filesProcessed1, int filesProcessed2) {
+        progress.finish(operation, totalFiles, startTime, filesProcessed1, filesProcessed2);
+        if (operation.equals("Backup")) {
+            changedFiles = filesProcessed1;
+            unchangedFiles = filesProcessed2;
         }
     }
 
-    private void runShallowTest(File sourceDir, File targetDir) throws IOException {
-        long startTime = System.currentTimeMillis();
-        int filesTested = 0;
-        int directoriesTested = 0;
-        int filesMatched = 0;
-        int filesMismatched = 0;
-
-        System.out.println("\nRunning shallow test...");
-        Collection<File> sourceFiles = FileUtils.listFilesAndDirs(sourceDir, TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE);
-        Collection<File> targetFiles = FileUtils.listFilesAndDirs(targetDir, TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE);
-        int totalFiles = sourceFiles.size();
-
-        if (sourceFiles.size() != targetFiles.size()) {
-            System.out.println("Shallow test failed: different number of files/directories.");
-            filesMismatched++;
+    private interface FileCheck {
+        boolean matches(File sourceFile, String relativePath, BasicFileAttributes sourceAttrs) throws IOException;
+    }
+
+    // Runs the shallow or deep test that fits the configured format, comparing the base directory with the backup
+    public void runRequestedTest(boolean deepTest) throws IOException {
+        if (format == BackupFormat.STORE) {
+            runSnapshotTest(deepTest);
+        } else if (format == BackupFormat.PACK) {
+            runPackTest(deepTest);
+        } else if (deepTest) {
+            runDeepTest(baseSaveDir, backupDir);
         } else {
-            System.out.println("Shallow test passed: same number of files/directories.");
+            runShallowTest(baseSaveDir, backupDir);
+        }
+    }
 
-            for (File sourceFile : sourceFiles) {
-                File correspondingFile = new File(targetDir, getRelativePath(sourceDir, sourceFile));
-                if (sourceFile.isDirectory()) {
-                    directoriesTested++;
-                } else {
-                    filesTested++;
-                    if (!correspondingFile.exists()) {
-                        filesMismatched++;
-                        printProgress("Shallow Test", filesTested, totalFiles, startTime, sourceFile.getPath(), filesMatched, filesMismatched);
-                    } else {
-                        filesMatched++;
-                        printProgress("Shallow Test", filesTested, totalFiles, startTime, sourceFile.getPath(), filesMatched, filesMismatched);
-                    }
+    public void runShallowTest(File sourceDir, File targetDir) throws IOException {
+        runTest("Shallow", sourceDir, FileWalker.count(targetDir), (sourceFile, relativePath, sourceAttrs) -> new File(targetDir, relativePath).exists());
+    }
+
+    // Files whose size and mtime match the digest cache on both sides count as matched without being read, unless --full is given
+    public void runDeepTest(File sourceDir, File targetDir) throws IOException {
+        BackupManifest digests = BackupManifest.loadDigests(targetDir);
+        digests.markInProgress();
+        String hashPrefix = verifier.getAlgorithm().name().toLowerCase() + ":";
+        AtomicInteger filesCached = new AtomicInteger();
+
+        runTest("Deep", sourceDir, FileWalker.count(targetDir), (sourceFile, relativePath, sourceAttrs) -> {
+            BackupManifest.Entry target = readEntry(new File(targetDir, relativePath));
+            if (target == null || target.size != sourceAttrs.size()) {
+                digests.remove(relativePath);
+                return false;
+            }
+
+            long lastModified = sourceAttrs.lastModifiedTime().toMillis();
+            BackupManifest.Entry cached = digests.get(relativePath);
+            if (!fullVerify && cached != null && cached.hash.startsWith(hashPrefix) && cached.size == target.size
+                    && cached.lastModified == lastModified && target.lastModified == lastModified) {
+                filesCached.incrementAndGet();
+                return true;
+            }
+
+            String hash = verifier.compare(sourceFile.toPath(), targetDir.toPath().resolve(relativePath));
+            if (hash != null && target.lastModified == lastModified) {
+                digests.put(relativePath, target.size, lastModified, hashPrefix + hash);
+            } else {
+                digests.remove(relativePath);
+            }
+            return hash != null;
+        });
+
+        digests.save();
+        System.out.println("Files matched from digest cache: " + filesCached.get());
+    }
+
+    // Checks the base directory against a snapshot manifest. The deep test also checks that every referenced object is in
+    // the store with the recorded size, and compares the source with the object byte for byte whenever it reads the
+    // file; the shared hash must be the object's name, so a damaged object fails even if the source changed the same way.
+    private void runSnapshotTest(boolean deep) throws IOException {
+        SnapshotStore store = new SnapshotStore(backupDir);
+        BackupManifest snapshot = loadCompleteSnapshot(store, resolveSnapshotId(store));
+        // Snapshot hashes are the store's SHA-256 object names, whatever --hash says
+        FileVerifier snapshotVerifier = new FileVerifier(FileVerifier.Algorithm.SHA256);
+        // The snapshot lists every entry except the root directory
+        runTest(deep ? "Deep" : "Shallow", baseSaveDir, snapshot.size() + 1, (sourceFile, relativePath, sourceAttrs) -> {
+            BackupManifest.Entry entry = snapshot.get(relativePath);
+            if (entry == null || entry.isDirectory()) {
+                return false;
+            } else if (!deep) {
+                return true;
+            } else if (entry.size != sourceAttrs.size()) {
+                return false;
+            }
+            File blobFile = store.getBlobFile(entry.hash);
+            BackupManifest.Entry blob = readEntry(blobFile);
+            if (blob == null || blob.size != entry.size) {
+                if (verbose) {
+                    System.out.println("\n" + (blob == null ? "Missing" : "Damaged") + " object " + entry.hash + " for " + relativePath);
                 }
+                return false;
+            } else if (!fullVerify && entry.lastModified == sourceAttrs.lastModifiedTime().toMillis()) {
+                // Unchanged since the snapshot recorded its hash
+                return true;
             }
+            return entry.hash.equals(snapshotVerifier.compare(sourceFile.toPath(), blobFile.toPath()));
+        });
+    }
 
-            // Ensure final progress is 100%
-            printProgress("Shallow Test", totalFiles, totalFiles, startTime, "", filesMatched, filesMismatched);
+    // Checks the base directory against the pack index; the deep test compares each file with its bytes inside the pack.
+    // Like the directory format, files whose size and mtime match a digest cache entry written by an earlier successful
+    // comparison count as matched without being read, unless --full is given. Cache entries name the pack location, so
+    // a file that was packed again is read again.
+    private void runPackTest(boolean deep) throws IOException {
+        PackStore store = PackStore.load(backupDir);
+        if (!store.exists()) {
+            throw new IOException("Pack backup does not exist.");
+        }
+        BackupManifest digests = deep ? BackupManifest.loadDigests(backupDir) : null;
+        if (deep) {
+            digests.markInProgress();
+        }
+        AtomicInteger filesCached = new AtomicInteger();
+        // Index CRCs are always CRC32C, whatever --hash selects
+        FileVerifier packCrcVerifier = new FileVerifier(FileVerifier.Algorithm.CRC32C);
+        // The index lists every entry except the root directory
+        runTest(deep ? "Deep" : "Shallow", baseSaveDir, store.size() + 1, (sourceFile, relativePath, sourceAttrs) -> {
+            PackStore.Entry entry = store.get(relativePath);
+            if (entry == null || entry.isDirectory()) {
+                return false;
+            } else if (!deep) {
+                return true;
+            } else if (entry.size != sourceAttrs.size()) {
+                digests.remove(relativePath);
+                return false;
+            }
+
+            long lastModified = sourceAttrs.lastModifiedTime().toMillis();
+            String location = "pack-" + entry.pack + "@" + entry.offset + ":" + entry.crc;
+            BackupManifest.Entry cached = digests.get(relativePath);
+            if (!fullVerify && cached != null && cached.hash.equals(location) && cached.size == entry.size
+                    && cached.lastModified == lastModified && entry.lastModified == lastModified) {
+                filesCached.incrementAndGet();
+                return true;
+            }
+
+            boolean matched;
+            if (entry.isCompressed()) {
+                // Compressed bytes cannot be compared directly; check the source and the unpacked data against the indexed CRC32C
+                matched = packCrcVerifier.hash(sourceFile.toPath()).equals(entry.crc) && store.checksum(entry).equals(entry.crc);
+            } else {
+                try (FileChannel pack = FileChannel.open(store.getPackFile(entry.pack).toPath(), StandardOpenOption.READ)) {
+                    matched = verifier.compare(sourceFile.toPath(), pack, entry.offset, entry.length) != null;
+                }
+            }
+            if (matched && entry.lastModified == lastModified) {
+                digests.put(relativePath, entry.size, lastModified, location);
+            } else {
+                digests.remove(relativePath);
+            }
+            return matched;
+        });
+
+        if (deep) {
+            // Drop files that are no longer packed
+            for (String relativePath : new ArrayList<>(digests.getEntries().keySet())) {
+                if (store.get(relativePath) == null) {
+                    digests.remove(relativePath);
+                }
+            }
+            digests.save();
+            System.out.println("Files matched from digest cache: " + filesCached.get());
         }
-        long endTime = System.currentTimeMillis();
-        long totalTime = endTime - startTime;
-        String formattedTime = formatDuration(totalTime);
-        System.out.println("\nShallow Test Summary:");
-        System.out.println("Directories tested: " + directoriesTested);
-        System.out.println("Files tested: " + filesTested);
-        System.out.println("Files matched: " + filesMatched);
-        System.out.println("Files mismatched: " + filesMismatched);
-        System.out.println("Total time: " + formattedTime);
     }
 
-    private void runDeepTest(File sourceDir, File targetDir) throws IOException {
+    // Streams the source tree through the check; the expected entry count of the target is the progress total
+    private void runTest(String testName, File sourceDir, int totalFiles, FileCheck check) throws IOException {
         long startTime = System.currentTimeMillis();
-        int filesTested = 0;
-        int directoriesTested = 0;
-        int filesMatched = 0;
-        int filesMismatched = 0;
-
-        System.out.println("\nRunning deep test...");
-        Collection<File> sourceFiles = FileUtils.listFilesAndDirs(sourceDir, TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE);
-        Collection<File> targetFiles = FileUtils.listFilesAndDirs(targetDir, TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE);
-        int totalFiles = sourceFiles.size();
-
-        if (sourceFiles.size() != targetFiles.size()) {
-            System.out.println("Deep test failed: different number of files/directories.");
-            filesMismatched++;
-        } else {
-            System.out.println("Deep test passed: same number of files/directories.");
+        RunMetrics.Phase phase = metrics.startPhase(testName.toLowerCase() + " test");
+        AtomicInteger filesTested = new AtomicInteger();
+        AtomicInteger directoriesTested = new AtomicInteger();
+        AtomicInteger filesMatched = new AtomicInteger();
+        AtomicInteger filesMismatched = new AtomicInteger();
+        String operation = testName + " Test";
 
-            for (File sourceFile : sourceFiles) {
-                File correspondingFile = new File(targetDir, getRelativePath(sourceDir, sourceFile));
-                if (sourceFile.isDirectory()) {
-                    directoriesTested++;
-                } else {
-                    filesTested++;
-                    if (!correspondingFile.exists()) {
-                        filesMismatched++;
-                        printProgress("Deep Test", filesTested, totalFiles, startTime, sourceFile.getPath(), filesMatched, filesMismatched);
-                    } else {
-                        if (sourceFile.isFile()) {
-                            if (sourceFile.length() != correspondingFile.length()) {
-                                filesMismatched++;
-                                printProgress("Deep Test", filesTested, totalFiles, startTime, sourceFile.getPath(), filesMatched, filesMismatched);
-                            } else if (!FileUtils.contentEquals(sourceFile, correspondingFile)) {
-                                filesMismatched++;
-                                printProgress("Deep Test", filesTested, totalFiles, startTime, sourceFile.getPath(), filesMatched, filesMismatched);
-                            } else {
-                                String sourceSha = DigestUtils.sha256Hex(FileUtils.openInputStream(sourceFile));
-                                String targetSha = DigestUtils.sha256Hex(FileUtils.openInputStream(correspondingFile));
-                                if (!sourceSha.equals(targetSha)) {
-                                    filesMismatched++;
-                                    printProgress("Deep Test", filesTested, totalFiles, startTime, sourceFile.getPath(), filesMatched, filesMismatched);
-                                } else {
-                                    filesMatched++;
-                                    printProgress("Deep Test", filesTested, totalFiles, startTime, sourceFile.getPath(), filesMatched, filesMismatched);
-                                }
-                            }
+        System.out.println("\nRunning " + testName.toLowerCase() + " test...");
+
+        try (CopyEngine engine = new CopyEngine(threads, phase)) {
+            FileWalker.walk(sourceDir, new FileWalker.Visitor() {
+                @Override
+                public boolean visitDirectory(Path dir, String relativePath, BasicFileAttributes attrs) {
+                    directoriesTested.incrementAndGet();
+                    return true;
+                }
+
+                @Override
+                public void visitFile(Path file, String relativePath, BasicFileAttributes attrs) throws IOException {
+                    engine.submit(() -> {
+                        if (check.matches(file.toFile(), relativePath, attrs)) {
+                            filesMatched.incrementAndGet();
+                        } else {
+                            filesMismatched.incrementAndGet();
                         }
-                    }
+                        int tested = filesTested.incrementAndGet();
+                        printProgress(operation, tested + directoriesTested.get(), Math.max(totalFiles, tested + directoriesTested.get()), startTime, file.toString(), filesMatched.get(), filesMismatched.get());
+                    });
                 }
-            }
+            });
+            engine.awaitCompletion();
         }
 
         // Ensure final progress is 100%
-        printProgress("Deep Test", totalFiles, totalFiles, startTime, "", filesMatched, filesMismatched);
+        finishProgress(operation, totalFiles, startTime, filesMatched.get(), filesMismatched.get());
+        phase.end();
+
+        if (filesTested.get() + directoriesTested.get() != totalFiles) {
+            System.out.println("\n" + testName + " test failed: different number of files/directories.");
+            filesMismatched.incrementAndGet();
+        } else {
+            System.out.println("\n" + testName + " test passed: same number of files/directories.");
+        }
 
         long endTime = System.currentTimeMillis();
         long totalTime = endTime - startTime;
         String formattedTime = formatDuration(totalTime);
-        System.out.println("\nDeep Test Summary:");
-        System.out.println("Directories tested: " + directoriesTested);
-        System.out.println("Files tested: " + filesTested);
-        System.out.println("Files matched: " + filesMatched);
-        System.out.println("Files mismatched: " + filesMismatched);
+        System.out.println(operation + " Summary:");
+        System.out.println("Directories tested: " + directoriesTested.get());
+        System.out.println("Files tested: " + filesTested.get());
+        System.out.println("Files matched: " + filesMatched.get());
+        System.out.println("Files mismatched: " + filesMismatched.get());
         System.out.println("Total time: " + formattedTime);
     }
-
     public static void main(String[] args) {
         if (args.length < 2 || args[0].equalsIgnoreCase(HELP_FLAG) || args[0].equalsIgnoreCase(HELP_SHORT_FLAG)) {
             printHelp();
@@ -416,17 +1567,37 @@ public class PZSaver {
         boolean deepTest = false;
         boolean skipOperation = false;
         boolean testRequested = false;
+        int threads = 1;
+        BackupFormat format = BackupFormat.DIRECTORY;
+        int snapshotId = 0;
+        boolean linkUnchanged = false;
+        FileVerifier.Algorithm hashAlgorithm = FileVerifier.Algorithm.CRC32C;
+        boolean fullVerify = false;
+        boolean deltaCopy = false;
+        RestoreSelection selection = null;
+        int compressionLevel = -1;
+        int debounceSeconds = 5;
+        int consistentPasses = 0;
+        boolean dryRun = false;
+        boolean collectMetrics = false;
+        double limitMegabytes = 0;
+        double limitFiles = 0;
+        boolean background = false;
+        int keepLast = 0;
+        int keepHourly = 0;
+        int keepDaily = 0;
+        int keepWeekly = 0;
 
         // Parse arguments
         for (int i = 0; i < args.length; i++) {
             String arg = args[i];
-            if (arg.equalsIgnoreCase(BACKUP) || arg.equalsIgnoreCase(RESTORE)) {
+            if (arg.equalsIgnoreCase(BACKUP) || arg.equalsIgnoreCase(RESTORE) || arg.equalsIgnoreCase(WATCH) || arg.equalsIgnoreCase(BATCH) || arg.equalsIgnoreCase(PRUNE)) {
                 if (command != null) {
-                    System.out.println("Error: Multiple commands specified. Only one of 'backup' or 'restore' should be used.");
+                    System.out.println("Error: Multiple commands specified. Only one of 'backup', 'restore', 'watch', 'batch' or 'prune' should be used.");
                     printUsage();
                     return;
                 }
-                command = arg;
+                command = arg.toLowerCase();
             } else if (arg.startsWith("--") || arg.startsWith("-")) {
                 if (arg.equalsIgnoreCase(VERBOSE_FLAG) || arg.equals(VERBOSE_SHORT_FLAG)) {
                     verbose = true;
@@ -442,6 +1613,160 @@ public class PZSaver {
                     }
                 } else if (arg.equalsIgnoreCase(SKIP_FLAG) || arg.equals(SKIP_SHORT_FLAG)) {
                     skipOperation = true;
+                } else if (arg.equalsIgnoreCase(LINK_FLAG) || arg.equals(LINK_SHORT_FLAG)) {
+                    linkUnchanged = true;
+                } else if (arg.equalsIgnoreCase(THREADS_FLAG) || arg.equals(THREADS_SHORT_FLAG)) {
+                    if (i + 1 >= args.length) {
+                        System.out.println("Error: " + arg + " requires a thread count.");
+                        printUsage();
+                        return;
+                    }
+                    try {
+                        threads = Integer.parseInt(args[++i]);
+                    } catch (NumberFormatException e) {
+                        threads = -1;
+                    }
+                    if (threads < 0) {
+                        System.out.println("Error: Invalid thread count " + args[i]);
+                        printUsage();
+                        return;
+                    }
+                } else if (arg.equalsIgnoreCase(FORMAT_FLAG) || arg.equals(FORMAT_SHORT_FLAG)) {
+                    format = i + 1 < args.length ? BackupFormat.fromName(args[++i]) : null;
+                    if (format == null) {
+                        System.out.println("Error: " + arg + " requires one of 'directory', 'store' or 'pack'.");
+                        printUsage();
+                        return;
+                    }
+                } else if (arg.equalsIgnoreCase(HASH_FLAG)) {
+                    hashAlgorithm = i + 1 < args.length ? FileVerifier.Algorithm.fromName(args[++i]) : null;
+                    if (hashAlgorithm == null) {
+                        System.out.println("Error: " + arg + " requires one of 'crc32c' or 'sha256'.");
+                        printUsage();
+                        return;
+                    }
+                } else if (arg.equalsIgnoreCase(DELTA_FLAG) || arg.equals(DELTA_SHORT_FLAG)) {
+                    deltaCopy = true;
+                } else if (arg.equalsIgnoreCase(FILE_FLAG)) {
+                    if (i + 1 >= args.length) {
+                        System.out.println("Error: " + arg + " requires a path relative to the save directory.");
+                        printUsage();
+                        return;
+                    }
+                    String selectedPath = args[++i].replace('\\', '/');
+                    while (selectedPath.endsWith("/")) {
+                        selectedPath = selectedPath.substring(0, selectedPath.length() - 1);
+                    }
+                    selection = selection != null ? selection : new RestoreSelection();
+                    selection.addPath(selectedPath);
+                } else if (arg.equalsIgnoreCase(REGION_FLAG)) {
+                    selection = selection != null ? selection : new RestoreSelection();
+                    if (i + 1 >= args.length || !selection.addRegion(args[++i])) {
+                        System.out.println("Error: " + arg + " requires chunk coordinates as x,y or x1,y1:x2,y2.");
+                        printUsage();
+                        return;
+                    }
+                } else if (arg.equalsIgnoreCase(CLASS_FLAG)) {
+                    selection = selection != null ? selection : new RestoreSelection();
+                    if (i + 1 >= args.length || !selection.addClass(args[++i])) {
+                        System.out.println("Error: " + arg + " requires one of " + RestoreSelection.getClassNames() + ".");
+                        printUsage();
+                        return;
+                    }
+                } else if (arg.equalsIgnoreCase(COMPRESS_FLAG) || arg.equals(COMPRESS_SHORT_FLAG)) {
+                    try {
+                        compressionLevel = i + 1 < args.length ? Integer.parseInt(args[++i]) : -1;
+                    } catch (NumberFormatException e) {
+                        compressionLevel = -1;
+                    }
+                    if (compressionLevel < 0 || compressionLevel > 9) {
+                        System.out.println("Error: " + arg + " requires a compression level from 0 to 9.");
+                        printUsage();
+                        return;
+                    }
+                } else if (arg.equalsIgnoreCase(DEBOUNCE_FLAG)) {
+                    try {
+                        debounceSeconds = i + 1 < args.length ? Integer.parseInt(args[++i]) : 0;
+                    } catch (NumberFormatException e) {
+                        debounceSeconds = 0;
+                    }
+                    if (debounceSeconds <= 0) {
+                        System.out.println("Error: " + arg + " requires a positive number of seconds.");
+                        printUsage();
+                        return;
+                    }
+                } else if (arg.equalsIgnoreCase(CONSISTENT_FLAG)) {
+                    consistentPasses = DEFAULT_CONSISTENT_PASSES;
+                    if (i + 1 < args.length && args[i + 1].matches("\\d+")) {
+                        consistentPasses = Integer.parseInt(args[++i]);
+                        if (consistentPasses <= 0) {
+                            System.out.println("Error: " + arg + " requires a positive number of passes.");
+                            printUsage();
+                            return;
+                        }
+                    }
+                } else if (arg.equalsIgnoreCase(METRICS_FLAG)) {
+                    if (i + 1 >= args.length || !args[++i].equalsIgnoreCase("json")) {
+                        System.out.println("Error: " + arg + " requires the output format 'json'.");
+                        printUsage();
+                        return;
+                    }
+                    collectMetrics = true;
+                } else if (arg.equalsIgnoreCase(LIMIT_FLAG) || arg.equalsIgnoreCase(LIMIT_FILES_FLAG)) {
+                    double limit;
+                    try {
+                        limit = i + 1 < args.length ? Double.parseDouble(args[++i]) : 0;
+                    } catch (NumberFormatException e) {
+                        limit = 0;
+                    }
+                    if (limit <= 0) {
+                        System.out.println("Error: " + arg + " requires a positive rate.");
+                        printUsage();
+                        return;
+                    }
+                    if (arg.equalsIgnoreCase(LIMIT_FLAG)) {
+                        limitMegabytes = limit;
+                    } else {
+                        limitFiles = limit;
+                    }
+                } else if (arg.equalsIgnoreCase(KEEP_LAST_FLAG) || arg.equalsIgnoreCase(KEEP_HOURLY_FLAG) || arg.equalsIgnoreCase(KEEP_DAILY_FLAG) || arg.equalsIgnoreCase(KEEP_WEEKLY_FLAG)) {
+                    int count;
+                    try {
+                        count = i + 1 < args.length ? Integer.parseInt(args[++i]) : 0;
+                    } catch (NumberFormatException e) {
+                        count = 0;
+                    }
+                    if (count <= 0) {
+                        System.out.println("Error: " + arg + " requires a positive number of backups.");
+                        printUsage();
+                        return;
+                    }
+                    if (arg.equalsIgnoreCase(KEEP_LAST_FLAG)) {
+                        keepLast = count;
+                    } else if (arg.equalsIgnoreCase(KEEP_HOURLY_FLAG)) {
+                        keepHourly = count;
+                    } else if (arg.equalsIgnoreCase(KEEP_DAILY_FLAG)) {
+                        keepDaily = count;
+                    } else {
+                        keepWeekly = count;
+                    }
+                } else if (arg.equalsIgnoreCase(BACKGROUND_FLAG)) {
+                    background = true;
+                } else if (arg.equalsIgnoreCase(DRY_RUN_FLAG)) {
+                    dryRun = true;
+                } else if (arg.equalsIgnoreCase(FULL_FLAG)) {
+                    fullVerify = true;
+                } else if (arg.equalsIgnoreCase(SNAPSHOT_FLAG)) {
+                    try {
+                        snapshotId = i + 1 < args.length ? Integer.parseInt(args[++i]) : 0;
+                    } catch (NumberFormatException e) {
+                        snapshotId = 0;
+                    }
+                    if (snapshotId <= 0) {
+                        System.out.println("Error: " + arg + " requires a positive snapshot number.");
+                        printUsage();
+                        return;
+                    }
                 } else {
                     System.out.println("Error: Unknown flag " + arg);
                     printUsage();
@@ -465,21 +1790,49 @@ public class PZSaver {
             return;
         }
 
-        // Determine backup path if not provided
+        RetentionPolicy retention = new RetentionPolicy(keepLast, keepHourly, keepDaily, keepWeekly);
+        if (command.equals(PRUNE) && retention.isEmpty()) {
+            System.out.println("Error: prune requires at least one of --keep-last, --keep-hourly, --keep-daily or --keep-weekly.");
+            printUsage();
+            return;
+        }
+        if (command.equals(PRUNE) && format == BackupFormat.PACK) {
+            System.out.println("Error: pack backups have no older versions to prune; data of changed files is dropped when the packs are rewritten.");
+            return;
+        }
+
+        if (consistentPasses > 0 && format != BackupFormat.DIRECTORY) {
+            System.out.println("Error: " + CONSISTENT_FLAG + " is only supported in directory format; store and pack backups are written in a single pass.");
+            printUsage();
+            return;
+        }
+
+        if (command.equals(BATCH) && backupPath != null) {
+            System.out.println("Error: batch mode takes a Saves directory only; every save is backed up next to itself.");
+            printUsage();
+            return;
+        }
+
+        // Determine backup path if not provided; in batch mode every save resolves its own
         if (backupPath == null) {
-            if (command.equalsIgnoreCase(BACKUP) && createNewBackup) {
-                backupPath = getNextBackupDirectory(baseSavePath);
-            } else if (command.equalsIgnoreCase(RESTORE)) {
-                backupPath = getLastBackupDirectory(baseSavePath);
-            } else {
-                backupPath = getLastBackupDirectory(baseSavePath);
-            }
+            backupPath = command.equals(BATCH) ? baseSavePath : resolveBackupPath(command, format, createNewBackup, baseSavePath);
         }
 
-        PZSaver manager = new PZSaver(baseSavePath, backupPath, verbose, noPrompt, createNewBackup);
+        // Any limit or --background turns on the adaptive limiter; without limits it only backs off when the disk slows down
+        RateLimiter rateLimiter = null;
+        if (background || limitMegabytes > 0 || limitFiles > 0) {
+            rateLimiter = new RateLimiter(limitMegabytes * 1024 * 1024, limitFiles);
+        }
+
+        PZSaver manager = new PZSaver(baseSavePath, backupPath, verbose, noPrompt, createNewBackup, threads, format, snapshotId, linkUnchanged, hashAlgorithm, fullVerify, deltaCopy, selection, compressionLevel, consistentPasses, dryRun, collectMetrics, rateLimiter);
+
+        if (command.equals(BATCH)) {
+            runBatch(manager, new File(baseSavePath), threads, verbose, noPrompt, skipOperation, testRequested, deepTest, collectMetrics);
+            return;
+        }
 
         // Get approval before proceeding
-        if (!manager.getApproval(command, testRequested, deepTest)) {
+        if (!manager.getApproval(command, testRequested, deepTest, retention)) {
             System.out.println("Operation aborted by the user.");
             return;
         }
@@ -487,9 +1840,30 @@ public class PZSaver {
         try {
             if (!skipOperation) {
                 if (command.equalsIgnoreCase(BACKUP)) {
-                    manager.createBackup();
+                    if (format == BackupFormat.STORE) {
+                        manager.createSnapshot();
+                    } else if (format == BackupFormat.PACK) {
+                        manager.createPackBackup();
+                    } else {
+                        manager.createBackup();
+                    }
+                } else if (command.equals(PRUNE)) {
+                    if (format == BackupFormat.STORE) {
+                        manager.pruneSnapshots(retention);
+                    } else {
+                        manager.pruneBackups(retention);
+                    }
+                } else if (command.equals(WATCH)) {
+                    // Runs until interrupted, so tests are never reached
+                    manager.watch(TimeUnit.SECONDS.toMillis(debounceSeconds));
                 } else if (command.equalsIgnoreCase(RESTORE)) {
-                    manager.restoreBackup();
+                    if (format == BackupFormat.STORE) {
+                        manager.restoreSnapshot();
+                    } else if (format == BackupFormat.PACK) {
+                        manager.restorePackBackup();
+                    } else {
+                        manager.restoreBackup();
+                    }
                 } else {
                     System.out.println("Unknown command: " + command);
                     printUsage();
@@ -498,11 +1872,13 @@ public class PZSaver {
             }
 
             if (testRequested) {
-                if (deepTest) {
-                    manager.runDeepTest(new File(baseSavePath), new File(backupPath));
-                } else {
-                    manager.runShallowTest(new File(baseSavePath), new File(backupPath));
-                }
+                manager.runRequestedTest(deepTest);
+            }
+
+            if (collectMetrics) {
+                // One line of JSON at the very end, so monitoring can take the last line of the output
+                System.out.println();
+                System.out.println(manager.getMetrics().toJson());
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -0,0 +1,400 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32C;
+
+// Packed backup format: file contents are appended to a few large pack files instead of one file per chunk,
+// and an index records where each file lives. Saves with tens of thousands of tiny map chunks then cost a
+// handful of inodes and a single fsync per pack.
+//
+// Layout:
+//   <pack>/pack-<n>.dat   concatenated file contents, appended to and never rewritten in place
+//   <pack>/index.tsv      pack, offset, stored length, size, codec, mtime, CRC32C and relative path of every file and directory
+//
+// With a compression level set, file data is stored as BlockCompressor frames (codec "deflate") and the CRC32C
+// still covers the original bytes, so verification does not depend on how a file was stored.
+//
+// Unchanged files keep pointing at their old location, changed ones are appended to a new pack. The index is
+// replaced atomically after the packs are flushed, so an interrupted backup leaves the previous index intact.
+public class PackStore {
+    // A new pack is started once the current one reaches this size
+    private static final long MAX_PACK_SIZE = 256L << 20;
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final String INDEX_FILE = "index.tsv";
+    private static final String INDEX_HEADER = "#PZSaver pack index v2";
+    private static final String INDEX_HEADER_V1 = "#PZSaver pack index v1";
+    public static final String CODEC_RAW = "raw";
+    public static final String CODEC_DEFLATE = "deflate";
+    private static final String PACK_PREFIX = "pack-";
+    private static final String PACK_SUFFIX = ".dat";
+
+    public static class Entry {
+        public final int pack;
+        public final long offset;
+        // Bytes occupied in the pack
+        public final long length;
+        // Size of the original file
+        public final long size;
+        public final String codec;
+        public final long lastModified;
+        public final String crc;
+
+        public Entry(int pack, long offset, long length, long size, String codec, long lastModified, String crc) {
+            this.pack = pack;
+            this.offset = offset;
+            this.length = length;
+            this.size = size;
+            this.codec = codec;
+            this.lastModified = lastModified;
+            this.crc = crc;
+        }
+
+        public boolean isCompressed() {
+            return CODEC_DEFLATE.equals(codec);
+        }
+
+        public boolean isDirectory() {
+            return pack < 0;
+        }
+    }
+
+    private final File packDir;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Object writeLock = new Object();
+    private FileChannel currentPack;
+    private int currentPackId;
+    private final List<FileChannel> writtenPacks = new ArrayList<>();
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private BlockCompressor compressor;
+
+    private PackStore(File packDir) {
+        this.packDir = packDir;
+    }
+
+    public static PackStore load(File packDir) throws IOException {
+        PackStore store = new PackStore(packDir);
+        File indexFile = store.getIndexFile();
+        if (!indexFile.isFile()) {
+            return store;
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(indexFile.toPath(), StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            boolean version1 = INDEX_HEADER_V1.equals(line);
+            if (!version1 && !INDEX_HEADER.equals(line)) {
+                throw new IOException("Unknown pack index format: " + line);
+            }
+            int fieldCount = version1 ? 6 : 8;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", fieldCount);
+                if (fields.length != fieldCount) {
+                    throw new IOException("Malformed pack index line: " + line);
+                }
+                if (version1) {
+                    // v1 packs were never compressed: stored length is the file size
+                    long length = Long.parseLong(fields[2]);
+                    store.entries.put(fields[5], new Entry(Integer.parseInt(fields[0]), Long.parseLong(fields[1]),
+                            length, length, CODEC_RAW, Long.parseLong(fields[3]), fields[4]));
+                } else {
+                    store.entries.put(fields[7], new Entry(Integer.parseInt(fields[0]), Long.parseLong(fields[1]),
+                            Long.parseLong(fields[2]), Long.parseLong(fields[3]), fields[4], Long.parseLong(fields[5]), fields[6]));
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed pack index " + indexFile.getPath(), e);
+        }
+        return store;
+    }
+
+    public File getPackDir() {
+        return packDir;
+    }
+
+    // Compress newly appended files with the given Deflater level; a negative level stores them as they are
+    public void setCompressionLevel(int level) {
+        this.compressor = level >= 0 ? new BlockCompressor(level) : null;
+    }
+
+    public boolean exists() {
+        return getIndexFile().isFile();
+    }
+
+    public Entry get(String relativePath) {
+        return entries.get(relativePath);
+    }
+
+    public Map<String, Entry> getEntries() {
+        return Collections.unmodifiableMap(entries);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    // Bytes in the pack files that the index refers to
+    public long getLiveBytes() {
+        long liveBytes = 0;
+        for (Entry entry : entries.values()) {
+            if (!entry.isDirectory()) {
+                liveBytes += entry.length;
+            }
+        }
+        return liveBytes;
+    }
+
+    // Bytes in the pack files that no index entry refers to any more
+    public long getDeadBytes() {
+        long packBytes = 0;
+        for (File pack : listPackFiles()) {
+            packBytes += pack.length();
+        }
+        return packBytes - getLiveBytes();
+    }
+
+    public File getPackFile(int pack) {
+        return new File(packDir, PACK_PREFIX + pack + PACK_SUFFIX);
+    }
+
+    // Appends a file to the current pack and returns its index entry. Small files are read outside the lock
+    // so several workers can load data while one of them writes.
+    // Compression of small files also happens outside the lock; large files are compressed block-parallel while appending.
+    // With a rate limiter (may be null) large files are read in slices that each wait for their share of the byte rate;
+    // other appends wait for the lock meanwhile, but they would be waiting for the same limiter anyway.
+    public Entry append(Path source, long size, long lastModified, RateLimiter limiter) throws IOException {
+        String codec = compressor != null ? CODEC_DEFLATE : CODEC_RAW;
+        if (size <= FileCopier.SMALL_FILE_SIZE) {
+            byte[] data = Files.readAllBytes(source);
+            CRC32C crc = new CRC32C();
+            crc.update(data);
+            byte[] stored = compressor != null ? compressor.compress(data) : data;
+            Entry entry;
+            synchronized (writeLock) {
+                FileChannel pack = openPackForAppend();
+                long offset = pack.position();
+                ByteBuffer buffer = ByteBuffer.wrap(stored);
+                while (buffer.hasRemaining()) {
+                    pack.write(buffer);
+                }
+                entry = new Entry(currentPackId, offset, stored.length, data.length, codec, lastModified, formatCrc(crc));
+            }
+            if (limiter != null) {
+                limiter.consume(data.length);
+            }
+            return entry;
+        }
+
+        synchronized (writeLock) {
+            FileChannel pack = openPackForAppend();
+            long offset = pack.position();
+            CRC32C crc = new CRC32C();
+            try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+                if (compressor != null) {
+                    long stored = compressor.compress(in, pack, crc, limiter);
+                    return new Entry(currentPackId, offset, stored, in.position(), codec, lastModified, formatCrc(crc));
+                }
+                int sliceSize = limiter != null ? RateLimiter.SLICE_SIZE : BUFFER_SIZE;
+                writeBuffer.clear().limit(sliceSize);
+                long start = System.nanoTime();
+                while (in.read(writeBuffer) >= 0) {
+                    writeBuffer.flip();
+                    int length = writeBuffer.remaining();
+                    crc.update(writeBuffer.duplicate());
+                    while (writeBuffer.hasRemaining()) {
+                        pack.write(writeBuffer);
+                    }
+                    writeBuffer.clear().limit(sliceSize);
+                    if (limiter != null) {
+                        limiter.consume(length, System.nanoTime() - start, RateLimiter.Transfer.PACK);
+                        start = System.nanoTime();
+                    }
+                }
+            }
+            long stored = pack.position() - offset;
+            return new Entry(currentPackId, offset, stored, stored, codec, lastModified, formatCrc(crc));
+        }
+    }
+
+    public void put(String relativePath, Entry entry) {
+        entries.put(relativePath, entry);
+    }
+
+    public void putDirectory(String relativePath, long lastModified) {
+        entries.put(relativePath, new Entry(-1, 0, -1, -1, CODEC_RAW, lastModified, ""));
+    }
+
+    public void remove(String relativePath) {
+        entries.remove(relativePath);
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    // Flushes the packs written by this run, replaces the index atomically and deletes packs nothing refers to
+    public void save() throws IOException {
+        synchronized (writeLock) {
+            for (FileChannel pack : writtenPacks) {
+                pack.force(true);
+                pack.close();
+            }
+            writtenPacks.clear();
+            currentPack = null;
+        }
+
+        Path indexPath = getIndexFile().toPath();
+        Path tempPath = indexPath.resolveSibling(INDEX_FILE + ".tmp");
+        List<String> paths = new ArrayList<>(entries.keySet());
+        paths.sort(null);
+        Set<Integer> livePacks = new HashSet<>();
+        try (BufferedWriter writer = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8)) {
+            writer.write(INDEX_HEADER);
+            writer.newLine();
+            for (String path : paths) {
+                Entry entry = entries.get(path);
+                livePacks.add(entry.pack);
+                writer.write(entry.pack + "\t" + entry.offset + "\t" + entry.length + "\t" + entry.size + "\t" + entry.codec + "\t"
+                        + entry.lastModified + "\t" + entry.crc + "\t" + path);
+                writer.newLine();
+            }
+        }
+        try {
+            Files.move(tempPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempPath, indexPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        for (File pack : listPackFiles()) {
+            if (!livePacks.contains(parsePackId(pack.getName()))) {
+                Files.delete(pack.toPath());
+            }
+        }
+    }
+
+    // Copies one file out of its pack into a fresh target file with the recorded mtime; a rate limiter (may be null)
+    // paces it slice by slice
+    public void extract(Entry entry, Path target, RateLimiter limiter) throws IOException {
+        Files.deleteIfExists(target);
+        Files.createDirectories(target.getParent());
+        try (FileChannel pack = FileChannel.open(getPackFile(entry.pack).toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            if (entry.isCompressed()) {
+                BlockCompressor.decompress(pack, entry.offset, entry.length, limiter != null ? limiter.throttle(out, RateLimiter.Transfer.EXTRACT) : out);
+            } else {
+                long position = 0;
+                while (position < entry.length) {
+                    long start = System.nanoTime();
+                    long transferred = pack.transferTo(entry.offset + position, Math.min(entry.length - position, limiter != null ? RateLimiter.SLICE_SIZE : Long.MAX_VALUE), out);
+                    if (transferred <= 0) {
+                        throw new IOException("Pack " + getPackFile(entry.pack).getName() + " is truncated at offset " + (entry.offset + position));
+                    }
+                    position += transferred;
+                    if (limiter != null) {
+                        limiter.consume(transferred, System.nanoTime() - start, RateLimiter.Transfer.EXTRACT);
+                    }
+                }
+            }
+        }
+        Files.setLastModifiedTime(target, FileTime.fromMillis(entry.lastModified));
+    }
+
+    // CRC32C of an entry's original content, read back from its pack; used to verify compressed entries
+    public String checksum(Entry entry) throws IOException {
+        CRC32C crc = new CRC32C();
+        WritableByteChannel sink = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer buffer) {
+                int length = buffer.remaining();
+                crc.update(buffer);
+                return length;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        try (FileChannel pack = FileChannel.open(getPackFile(entry.pack).toPath(), StandardOpenOption.READ)) {
+            if (entry.isCompressed()) {
+                BlockCompressor.decompress(pack, entry.offset, entry.length, sink);
+            } else {
+                pack.transferTo(entry.offset, entry.length, sink);
+            }
+        }
+        return formatCrc(crc);
+    }
+
+    // Always starts a fresh pack for each run, so packs referenced by the current index are never modified
+    private FileChannel openPackForAppend() throws IOException {
+        if (currentPack != null && currentPack.position() < MAX_PACK_SIZE) {
+            return currentPack;
+        }
+        Files.createDirectories(packDir.toPath());
+        int nextPackId = Math.max(currentPackId, highestPackId()) + 1;
+        currentPack = FileChannel.open(getPackFile(nextPackId).toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        currentPackId = nextPackId;
+        writtenPacks.add(currentPack);
+        return currentPack;
+    }
+
+    private int highestPackId() {
+        int highest = 0;
+        for (File pack : listPackFiles()) {
+            highest = Math.max(highest, parsePackId(pack.getName()));
+        }
+        return highest;
+    }
+
+    private List<File> listPackFiles() {
+        List<File> packs = new ArrayList<>();
+        File[] files = packDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (parsePackId(file.getName()) > 0) {
+                    packs.add(file);
+                }
+            }
+        }
+        return packs;
+    }
+
+    private static int parsePackId(String name) {
+        if (!name.startsWith(PACK_PREFIX) || !name.endsWith(PACK_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(PACK_PREFIX.length(), name.length() - PACK_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String formatCrc(CRC32C crc) {
+        return String.format("%08x", crc.getValue());
+    }
+
+    private File getIndexFile() {
+        return new File(packDir, INDEX_FILE);
+    }
+}
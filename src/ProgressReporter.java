@@ -0,0 +1,108 @@
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Renders the progress line from a timer thread. Workers only publish their latest counters through update(), which
+// costs a few volatile writes, and the line is formatted and printed at most every REFRESH_MILLIS no matter how many
+// files go by, so a slow terminal never holds up copying.
+public class ProgressReporter {
+    private static final long REFRESH_MILLIS = 200;
+
+    private final boolean verbose;
+    private ScheduledExecutorService timer;
+
+    private volatile String operation;
+    private volatile int processedFiles;
+    private volatile int totalFiles;
+    private volatile long startTime;
+    private volatile String filePath;
+    private volatile int count1;
+    private volatile int count2;
+    private volatile boolean dirty;
+
+    public ProgressReporter(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    // Publishes the latest state; the timer thread picks it up on its next tick
+    public void update(String operation, int processedFiles, int totalFiles, long startTime, String filePath, int count1, int count2) {
+        this.operation = operation;
+        this.processedFiles = processedFiles;
+        this.totalFiles = totalFiles;
+        this.startTime = startTime;
+        this.filePath = filePath;
+        this.count1 = count1;
+        this.count2 = count2;
+        dirty = true;
+        if (timer == null) {
+            startTimer();
+        }
+    }
+
+    // Prints the final state of an operation right away and stops the timer until the next update
+    public synchronized void finish(String operation, int totalFiles, long startTime, int count1, int count2) {
+        dirty = false;
+        if (timer != null) {
+            timer.shutdown();
+            timer = null;
+        }
+        print(operation, totalFiles, totalFiles, startTime, "", count1, count2);
+    }
+
+    // Helper to format duration from milliseconds to minutes and seconds
+    public static String formatDuration(long durationMillis) {
+        long minutes = TimeUnit.MILLISECONDS.toMinutes(durationMillis);
+        long seconds = TimeUnit.MILLISECONDS.toSeconds(durationMillis) - TimeUnit.MINUTES.toSeconds(minutes);
+        return String.format("%d min, %d sec", minutes, seconds);
+    }
+
+    private synchronized void startTimer() {
+        if (timer != null) {
+            return;
+        }
+        timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "pzsaver-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleAtFixedRate(this::render, REFRESH_MILLIS, REFRESH_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void render() {
+        if (dirty) {
+            dirty = false;
+            print(operation, processedFiles, totalFiles, startTime, filePath, count1, count2);
+        }
+    }
+
+    private void print(String operation, int processedFiles, int totalFiles, long startTime, String filePath, int filesProcessed1, int filesProcessed2) {
+        int progressPercentage = (int) (((double) processedFiles / totalFiles) * 100);
+        long currentTime = System.currentTimeMillis();
+        long elapsedTime = currentTime - startTime;
+        long estimatedTotalTime = (long) ((elapsedTime / (double) processedFiles) * totalFiles);
+        long estimatedRemainingTime = estimatedTotalTime - elapsedTime;
+
+        String formattedElapsedTime = formatDuration(elapsedTime);
+        String formattedRemainingTime = formatDuration(estimatedRemainingTime);
+
+        // Ensure progress is 100% when the operation is complete
+        if (processedFiles == totalFiles) {
+            progressPercentage = 100;
+        }
+
+        String progressMessage = String.format("\r%s Progress: %d%% | Elapsed: %s | Remaining: %s",
+                operation, progressPercentage, formattedElapsedTime, formattedRemainingTime);
+
+        if (operation.contains("Test")) {
+            String fileMessage = String.format(" | File: %s | matched: %d, mismatched: %d",
+                    filePath, filesProcessed1, filesProcessed2);
+            System.out.print(progressMessage + fileMessage);
+        } else if (verbose) {
+            String fileMessage = String.format(" | File: %s | %s: %d, %s: %d",
+                    filePath, operation.equals("Backup") ? "copied" : "restored", filesProcessed1, operation.equals("Backup") ? "skipped" : "deleted", filesProcessed2);
+            System.out.print(progressMessage + fileMessage);
+        } else {
+            System.out.print(progressMessage);
+        }
+    }
+}
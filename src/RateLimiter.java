@@ -0,0 +1,201 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+// Token buckets on bytes/s and files/s for background backups, shared by all copy workers. Each copy takes one file
+// token before it starts, and the copy loops take byte tokens for every slice of at most SLICE_SIZE bytes they move,
+// so a large file is spread out over time instead of written in one burst. When a bucket runs dry the worker sleeps
+// until the tokens it borrowed are paid back.
+//
+// The rates adapt to the disk: every slice of a large transfer reports how long its I/O took, normalized to 64 KiB I/O
+// units, and the limiter compares the moving average with the fastest average it has seen for that kind of transfer.
+// When an average more than doubles (the disk is queueing, e.g. while the server flushes chunks) the rates are halved;
+// once they are all back near normal the rates climb back towards the configured maximum in steps. Small files are
+// copied whole, so their time is mostly open/create/close overhead; they pay for their bytes but are not timed.
+public class RateLimiter {
+    // Most bytes a copy loop moves between two calls to consume()
+    public static final int SLICE_SIZE = 256 << 10;
+
+    // The copy loops that report slices; each does different I/O per byte, so each keeps its own latency baseline
+    public enum Transfer {
+        COPY, DELTA, BLOB, PACK, COMPRESS, EXTRACT
+    }
+
+    private static final long ADJUST_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final int IO_UNIT = 64 << 10;
+    private static final double LATENCY_WEIGHT = 0.1;
+    // Back off when latency exceeds this multiple of the baseline, recover when it is below the second one
+    private static final double BACKOFF_THRESHOLD = 2.0;
+    private static final double RECOVERY_THRESHOLD = 1.25;
+    private static final double BACKOFF_FACTOR = 0.5;
+    private static final double RECOVERY_FACTOR = 1.1;
+    private static final double MIN_BYTES_PER_SECOND = 256 << 10;
+    private static final double MIN_FILES_PER_SECOND = 5;
+
+    private final double maxBytesPerSecond;
+    private final double maxFilesPerSecond;
+    private double bytesPerSecond;
+    private double filesPerSecond;
+    private double byteTokens;
+    private double fileTokens;
+    private long lastRefill = System.nanoTime();
+
+    private final double[] latencyAverage = new double[Transfer.values().length];
+    private final double[] latencyBaseline = new double[Transfer.values().length];
+    private final boolean[] latencySampled = new boolean[Transfer.values().length];
+    private long lastAdjust = System.nanoTime();
+    private long windowBytes;
+    private long windowFiles;
+    private int backoffs;
+
+    // A limit of 0 leaves that dimension unlimited until the first back-off
+    public RateLimiter(double maxBytesPerSecond, double maxFilesPerSecond) {
+        this.maxBytesPerSecond = maxBytesPerSecond > 0 ? maxBytesPerSecond : Double.POSITIVE_INFINITY;
+        this.maxFilesPerSecond = maxFilesPerSecond > 0 ? maxFilesPerSecond : Double.POSITIVE_INFINITY;
+        this.bytesPerSecond = this.maxBytesPerSecond;
+        this.filesPerSecond = this.maxFilesPerSecond;
+    }
+
+    // Blocks until the next file may start
+    public void acquireFile() throws IOException {
+        long waitNanos;
+        synchronized (this) {
+            refill();
+            fileTokens -= 1;
+            windowFiles++;
+            waitNanos = deficitNanos(fileTokens, filesPerSecond);
+        }
+        sleep(waitNanos);
+    }
+
+    // Reports a slice a copy loop just moved and how long its I/O took, then blocks until the bytes are paid for
+    public void consume(long bytes, long nanos, Transfer transfer) throws IOException {
+        long waitNanos;
+        synchronized (this) {
+            recordLatency(transfer, nanos, bytes);
+            refill();
+            byteTokens -= bytes;
+            waitNanos = deficitNanos(byteTokens, bytesPerSecond);
+        }
+        sleep(waitNanos);
+    }
+
+    // Blocks until the bytes of a small file copied in one go are paid for; its time is not a latency sample
+    public void consume(long bytes) throws IOException {
+        long waitNanos;
+        synchronized (this) {
+            windowBytes += bytes;
+            refill();
+            byteTokens -= bytes;
+            waitNanos = deficitNanos(byteTokens, bytesPerSecond);
+        }
+        sleep(waitNanos);
+    }
+
+    // Wraps a channel so that every write to it is paced like a slice of a copy loop
+    public WritableByteChannel throttle(WritableByteChannel channel, Transfer transfer) {
+        return new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer buffer) throws IOException {
+                long start = System.nanoTime();
+                int written = channel.write(buffer);
+                consume(written, System.nanoTime() - start, transfer);
+                return written;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    // Helper to feed the adaptive rates with the time a slice took; the time spent sleeping here is not included.
+    // Slices shorter than an I/O unit (the tail of a file) are dominated by per-call overhead and only pay for their bytes.
+    private void recordLatency(Transfer transfer, long nanos, long bytes) {
+        windowBytes += bytes;
+        if (bytes >= IO_UNIT) {
+            int kind = transfer.ordinal();
+            double perUnit = nanos * (double) IO_UNIT / bytes;
+            latencyAverage[kind] = latencyAverage[kind] == 0 ? perUnit : latencyAverage[kind] + LATENCY_WEIGHT * (perUnit - latencyAverage[kind]);
+            latencySampled[kind] = true;
+        }
+
+        long now = System.nanoTime();
+        if (now - lastAdjust < ADJUST_INTERVAL_NANOS) {
+            return;
+        }
+        double seconds = (now - lastAdjust) / 1e9;
+        // Back off when any transfer seen in this window slowed down, recover only when all of them are near normal
+        boolean congested = false;
+        boolean recovered = true;
+        for (int kind = 0; kind < latencyAverage.length; kind++) {
+            if (!latencySampled[kind]) {
+                continue;
+            }
+            if (latencyBaseline[kind] == 0 || latencyAverage[kind] < latencyBaseline[kind]) {
+                latencyBaseline[kind] = latencyAverage[kind];
+            }
+            congested |= latencyAverage[kind] > latencyBaseline[kind] * BACKOFF_THRESHOLD;
+            recovered &= latencyAverage[kind] < latencyBaseline[kind] * RECOVERY_THRESHOLD;
+            latencySampled[kind] = false;
+        }
+        if (congested) {
+            // Unlimited rates start backing off from what was actually achieved
+            double previousRate = bytesPerSecond;
+            bytesPerSecond = Math.max(MIN_BYTES_PER_SECOND, Math.min(bytesPerSecond, windowBytes / seconds) * BACKOFF_FACTOR);
+            filesPerSecond = Math.max(MIN_FILES_PER_SECOND, Math.min(filesPerSecond, windowFiles / seconds) * BACKOFF_FACTOR);
+            if (bytesPerSecond < previousRate) {
+                backoffs++;
+            }
+        } else if (recovered) {
+            bytesPerSecond = Math.min(maxBytesPerSecond, bytesPerSecond * RECOVERY_FACTOR);
+            filesPerSecond = Math.min(maxFilesPerSecond, filesPerSecond * RECOVERY_FACTOR);
+        }
+        windowBytes = 0;
+        windowFiles = 0;
+        lastAdjust = now;
+    }
+
+    public synchronized int getBackoffs() {
+        return backoffs;
+    }
+
+    public synchronized double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public synchronized double getFilesPerSecond() {
+        return filesPerSecond;
+    }
+
+    // Helper to add the tokens earned since the last call; at most one second worth of tokens is saved up
+    private void refill() {
+        long now = System.nanoTime();
+        double seconds = (now - lastRefill) / 1e9;
+        lastRefill = now;
+        byteTokens = Double.isInfinite(bytesPerSecond) ? 0 : Math.min(bytesPerSecond, byteTokens + seconds * bytesPerSecond);
+        fileTokens = Double.isInfinite(filesPerSecond) ? 0 : Math.min(filesPerSecond, fileTokens + seconds * filesPerSecond);
+    }
+
+    private static void sleep(long nanos) throws IOException {
+        if (nanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(nanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while throttled.", e);
+            }
+        }
+    }
+
+    private static long deficitNanos(double tokens, double rate) {
+        return tokens >= 0 || Double.isInfinite(rate) ? 0 : (long) (-tokens / rate * 1e9);
+    }
+}
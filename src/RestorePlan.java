@@ -0,0 +1,142 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+// The difference between a backup and the base directory, computed once before a restore touches anything.
+// Both sides are listed as path-sorted maps and merged in a single pass. PATH_ORDER sorts '/' before every other
+// character, so the contents of a directory always directly follow it and a deleted directory's subtree can be
+// skipped as one block instead of being deleted entry by entry.
+public class RestorePlan {
+    // Sorts paths component by component, e.g. "a", "a/b", "a-1" rather than the plain string order "a", "a-1", "a/b"
+    public static final Comparator<String> PATH_ORDER = (left, right) -> {
+        int length = Math.min(left.length(), right.length());
+        for (int i = 0; i < length; i++) {
+            char l = left.charAt(i);
+            char r = right.charAt(i);
+            if (l != r) {
+                return l == '/' ? -1 : r == '/' ? 1 : Character.compare(l, r);
+            }
+        }
+        return Integer.compare(left.length(), right.length());
+    };
+
+    public enum Action {DELETE, CREATE, OVERWRITE}
+
+    public static class Step {
+        public final Action action;
+        public final String relativePath;
+        // The backup entry to restore, or the base entry to delete
+        public final BackupManifest.Entry entry;
+
+        private Step(Action action, String relativePath, BackupManifest.Entry entry) {
+            this.action = action;
+            this.relativePath = relativePath;
+            this.entry = entry;
+        }
+    }
+
+    private final List<Step> deletes = new ArrayList<>();
+    private final List<Step> directories = new ArrayList<>();
+    private final List<Step> files = new ArrayList<>();
+    private int unchangedFiles;
+    private long bytesToCopy;
+
+    public static SortedMap<String, BackupManifest.Entry> newTree() {
+        return new TreeMap<>(PATH_ORDER);
+    }
+
+    // Plans the restore of backup onto base. Files are overwritten when their size or mtime differs. Entries only present
+    // in base are deleted when deleteExtra is set; entries whose type changed (file vs. directory) are always replaced.
+    public static RestorePlan build(SortedMap<String, BackupManifest.Entry> backup, SortedMap<String, BackupManifest.Entry> base, boolean deleteExtra) {
+        if (backup.comparator() != PATH_ORDER || base.comparator() != PATH_ORDER) {
+            throw new IllegalArgumentException("Restore plans need trees sorted in PATH_ORDER");
+        }
+        RestorePlan plan = new RestorePlan();
+        Iterator<Map.Entry<String, BackupManifest.Entry>> backupEntries = backup.entrySet().iterator();
+        Iterator<Map.Entry<String, BackupManifest.Entry>> baseEntries = base.entrySet().iterator();
+        Map.Entry<String, BackupManifest.Entry> stored = next(backupEntries);
+        Map.Entry<String, BackupManifest.Entry> current = next(baseEntries);
+        String deletedDir = null;
+        while (stored != null || current != null) {
+            if (current != null && deletedDir != null && current.getKey().startsWith(deletedDir)) {
+                // Goes away together with its deleted parent
+                current = next(baseEntries);
+                continue;
+            }
+            int order = stored == null ? 1 : current == null ? -1 : PATH_ORDER.compare(stored.getKey(), current.getKey());
+            if (order < 0) {
+                plan.restore(Action.CREATE, stored);
+                stored = next(backupEntries);
+            } else if (order > 0) {
+                if (deleteExtra) {
+                    deletedDir = plan.delete(current, deletedDir);
+                }
+                current = next(baseEntries);
+            } else {
+                BackupManifest.Entry storedEntry = stored.getValue();
+                BackupManifest.Entry currentEntry = current.getValue();
+                if (storedEntry.isDirectory() != currentEntry.isDirectory()) {
+                    deletedDir = plan.delete(current, deletedDir);
+                    plan.restore(Action.CREATE, stored);
+                } else if (!storedEntry.isDirectory()) {
+                    if (storedEntry.size != currentEntry.size || storedEntry.lastModified != currentEntry.lastModified) {
+                        plan.restore(Action.OVERWRITE, stored);
+                    } else {
+                        plan.unchangedFiles++;
+                    }
+                }
+                stored = next(backupEntries);
+                current = next(baseEntries);
+            }
+        }
+        return plan;
+    }
+
+    // Files and directories to delete; a deleted directory covers its whole subtree
+    public List<Step> getDeletes() {
+        return Collections.unmodifiableList(deletes);
+    }
+
+    // Directories to create, parents before children
+    public List<Step> getDirectories() {
+        return Collections.unmodifiableList(directories);
+    }
+
+    // Files to create or overwrite
+    public List<Step> getFiles() {
+        return Collections.unmodifiableList(files);
+    }
+
+    public int getUnchangedFiles() {
+        return unchangedFiles;
+    }
+
+    public long getBytesToCopy() {
+        return bytesToCopy;
+    }
+
+    private void restore(Action action, Map.Entry<String, BackupManifest.Entry> stored) {
+        Step step = new Step(action, stored.getKey(), stored.getValue());
+        if (step.entry.isDirectory()) {
+            directories.add(step);
+        } else {
+            files.add(step);
+            bytesToCopy += step.entry.size;
+        }
+    }
+
+    // Helper to record a delete; returns the directory whose subtree is now covered by a delete
+    private String delete(Map.Entry<String, BackupManifest.Entry> current, String deletedDir) {
+        deletes.add(new Step(Action.DELETE, current.getKey(), current.getValue()));
+        return current.getValue().isDirectory() ? current.getKey() + "/" : deletedDir;
+    }
+
+    private static Map.Entry<String, BackupManifest.Entry> next(Iterator<Map.Entry<String, BackupManifest.Entry>> entries) {
+        return entries.hasNext() ? entries.next() : null;
+    }
+}
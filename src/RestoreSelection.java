@@ -0,0 +1,98 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// What a partial restore brings back: paths given with --file, chunk coordinate ranges given with --region (matched
+// against map_X_Y.bin file names) and named classes of save files given with --class. A file is restored if any of
+// them selects it, so one run can fix a broken base together with the player data.
+public class RestoreSelection {
+    private static final Pattern MAP_CHUNK = Pattern.compile("map_(-?\\d{1,9})_(-?\\d{1,9})\\.bin");
+    private static final Pattern REGION = Pattern.compile("(-?\\d{1,9}),(-?\\d{1,9})(?::(-?\\d{1,9}),(-?\\d{1,9}))?");
+    // File names of each --class, wherever they are in the save
+    private static final Map<String, Pattern> CLASSES = new LinkedHashMap<>();
+
+    static {
+        CLASSES.put("players", Pattern.compile("players\\.db(-journal)?|map_p\\.bin"));
+        CLASSES.put("vehicles", Pattern.compile("vehicles\\.db(-journal)?"));
+        CLASSES.put("zones", Pattern.compile("map_zone\\.bin|map_meta\\.bin"));
+    }
+
+    private final List<String> paths = new ArrayList<>();
+    private final List<int[]> regions = new ArrayList<>();
+    private final List<String> classes = new ArrayList<>();
+
+    public void addPath(String relativePath) {
+        paths.add(relativePath);
+    }
+
+    // Adds "x,y" or "x1,y1:x2,y2" (corners in any order); returns false if the range cannot be parsed
+    public boolean addRegion(String range) {
+        Matcher matcher = REGION.matcher(range);
+        if (!matcher.matches()) {
+            return false;
+        }
+        int x1 = Integer.parseInt(matcher.group(1));
+        int y1 = Integer.parseInt(matcher.group(2));
+        int x2 = matcher.group(3) != null ? Integer.parseInt(matcher.group(3)) : x1;
+        int y2 = matcher.group(4) != null ? Integer.parseInt(matcher.group(4)) : y1;
+        regions.add(new int[]{Math.min(x1, x2), Math.min(y1, y2), Math.max(x1, x2), Math.max(y1, y2)});
+        return true;
+    }
+
+    // Returns false for an unknown class name
+    public boolean addClass(String name) {
+        if (!CLASSES.containsKey(name.toLowerCase())) {
+            return false;
+        }
+        classes.add(name.toLowerCase());
+        return true;
+    }
+
+    public static String getClassNames() {
+        return String.join(", ", CLASSES.keySet());
+    }
+
+    public boolean matches(String relativePath) {
+        for (String path : paths) {
+            if (relativePath.equals(path) || relativePath.startsWith(path + "/")) {
+                return true;
+            }
+        }
+        if (regions.isEmpty() && classes.isEmpty()) {
+            return false;
+        }
+        String name = relativePath.substring(relativePath.lastIndexOf('/') + 1);
+        for (String fileClass : classes) {
+            if (CLASSES.get(fileClass).matcher(name).matches()) {
+                return true;
+            }
+        }
+        if (!regions.isEmpty() && name.startsWith("map_")) {
+            Matcher matcher = MAP_CHUNK.matcher(name);
+            if (matcher.matches()) {
+                int x = Integer.parseInt(matcher.group(1));
+                int y = Integer.parseInt(matcher.group(2));
+                for (int[] region : regions) {
+                    if (x >= region[0] && y >= region[1] && x <= region[2] && y <= region[3]) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        List<String> parts = new ArrayList<>(paths);
+        for (int[] region : regions) {
+            parts.add(region[0] == region[2] && region[1] == region[3] ? "chunk " + region[0] + "," + region[1]
+                    : "chunks " + region[0] + "," + region[1] + " to " + region[2] + "," + region[3]);
+        }
+        parts.addAll(classes);
+        return String.join(", ", parts);
+    }
+}
@@ -0,0 +1,85 @@
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+// Decides which backups survive a prune: the newest N, plus the newest backup of each of the last N hours, days and
+// weeks that have one. The rules add up, so a backup is kept if any of them wants it; everything else has expired.
+public class RetentionPolicy {
+    private final int keepLast;
+    private final int keepHourly;
+    private final int keepDaily;
+    private final int keepWeekly;
+
+    public RetentionPolicy(int keepLast, int keepHourly, int keepDaily, int keepWeekly) {
+        this.keepLast = keepLast;
+        this.keepHourly = keepHourly;
+        this.keepDaily = keepDaily;
+        this.keepWeekly = keepWeekly;
+    }
+
+    public boolean isEmpty() {
+        return keepLast == 0 && keepHourly == 0 && keepDaily == 0 && keepWeekly == 0;
+    }
+
+    // Returns the ids of the backups to keep, given the time (in milliseconds) of every backup. The highest id is
+    // always kept, whatever its time: the next differential or linked backup (or store snapshot) builds on it.
+    public Set<Integer> select(Map<Integer, Long> timestamps) {
+        List<Integer> newestFirst = new ArrayList<>(timestamps.keySet());
+        newestFirst.sort(Comparator.comparing((Integer id) -> timestamps.get(id)).thenComparing(id -> id).reversed());
+
+        Set<Integer> keep = new HashSet<>();
+        if (!timestamps.isEmpty()) {
+            keep.add(Collections.max(timestamps.keySet()));
+        }
+        for (int i = 0; i < newestFirst.size() && i < keepLast; i++) {
+            keep.add(newestFirst.get(i));
+        }
+        keepOnePer(newestFirst, timestamps, keepHourly, time -> time.truncatedTo(ChronoUnit.HOURS), keep);
+        keepOnePer(newestFirst, timestamps, keepDaily, time -> time.truncatedTo(ChronoUnit.DAYS), keep);
+        keepOnePer(newestFirst, timestamps, keepWeekly, time -> time.truncatedTo(ChronoUnit.DAYS).with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY)), keep);
+        return keep;
+    }
+
+    // Helper to keep the newest backup of each of the last count periods (hours, days or weeks) that have one
+    private static void keepOnePer(List<Integer> newestFirst, Map<Integer, Long> timestamps, int count, Function<LocalDateTime, LocalDateTime> period, Set<Integer> keep) {
+        Set<LocalDateTime> periods = new HashSet<>();
+        for (int id : newestFirst) {
+            if (periods.size() >= count) {
+                return;
+            }
+            LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(timestamps.get(id)), ZoneId.systemDefault());
+            if (periods.add(period.apply(time))) {
+                keep.add(id);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        List<String> rules = new ArrayList<>();
+        if (keepLast > 0) {
+            rules.add("last " + keepLast);
+        }
+        if (keepHourly > 0) {
+            rules.add("hourly " + keepHourly);
+        }
+        if (keepDaily > 0) {
+            rules.add("daily " + keepDaily);
+        }
+        if (keepWeekly > 0) {
+            rules.add("weekly " + keepWeekly);
+        }
+        return String.join(", ", rules);
+    }
+}
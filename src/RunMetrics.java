@@ -0,0 +1,135 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Timings of one PZSaver run for --metrics: wall time, files, bytes and a per-file latency histogram for every phase
+// (backup, restore, test, ...). Workers record into striped adders, so collecting costs two clock reads per file.
+public class RunMetrics {
+    // Bucket i counts files that took less than 2^i microseconds; the last bucket takes everything slower
+    private static final int BUCKETS = 32;
+
+    public static class Phase {
+        private final String name;
+        private final long startNanos = System.nanoTime();
+        private volatile long endNanos;
+        private final LongAdder files = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder[] latencyBuckets = new LongAdder[BUCKETS];
+        private final LongAccumulator maxLatencyNanos = new LongAccumulator(Math::max, 0);
+
+        private Phase(String name) {
+            this.name = name;
+            for (int i = 0; i < BUCKETS; i++) {
+                latencyBuckets[i] = new LongAdder();
+            }
+        }
+
+        // Records the time one file took
+        public void recordFile(long nanos) {
+            files.increment();
+            long micros = Math.max(0, nanos / 1000);
+            latencyBuckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros))].increment();
+            maxLatencyNanos.accumulate(nanos);
+        }
+
+        public void addBytes(long count) {
+            bytes.add(count);
+        }
+
+        public void end() {
+            if (endNanos == 0) {
+                endNanos = System.nanoTime();
+            }
+        }
+
+        private void appendJson(StringBuilder json) {
+            double seconds = ((endNanos != 0 ? endNanos : System.nanoTime()) - startNanos) / 1e9;
+            long fileCount = files.sum();
+            long byteCount = bytes.sum();
+            json.append("{\"name\":\"").append(name).append('"')
+                    .append(",\"seconds\":").append(format(seconds))
+                    .append(",\"files\":").append(fileCount)
+                    .append(",\"bytes\":").append(byteCount)
+                    .append(",\"filesPerSecond\":").append(format(seconds > 0 ? fileCount / seconds : 0))
+                    .append(",\"megabytesPerSecond\":").append(format(seconds > 0 ? byteCount / (1024.0 * 1024.0) / seconds : 0))
+                    .append(",\"latencyMicros\":{")
+                    .append("\"p50\":").append(percentile(fileCount, 0.50))
+                    .append(",\"p90\":").append(percentile(fileCount, 0.90))
+                    .append(",\"p99\":").append(percentile(fileCount, 0.99))
+                    .append(",\"max\":").append(maxLatencyNanos.get() / 1000)
+                    .append(",\"histogram\":[");
+            // Only the buckets from the fastest to the slowest file, as {"lessThan": 2^i, "count": n}
+            int firstBucket = -1;
+            int lastBucket = -1;
+            for (int i = 0; i < BUCKETS; i++) {
+                if (latencyBuckets[i].sum() > 0) {
+                    firstBucket = firstBucket < 0 ? i : firstBucket;
+                    lastBucket = i;
+                }
+            }
+            for (int i = Math.max(0, firstBucket); i <= lastBucket; i++) {
+                json.append(i > firstBucket ? "," : "").append("{\"lessThan\":").append(1L << i).append(",\"count\":").append(latencyBuckets[i].sum()).append('}');
+            }
+            json.append("]}}");
+        }
+
+        // Helper to estimate a percentile as the upper bound of the bucket it falls into
+        private long percentile(long fileCount, double fraction) {
+            long rank = (long) Math.ceil(fileCount * fraction);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS && fileCount > 0; i++) {
+                seen += latencyBuckets[i].sum();
+                if (seen >= rank) {
+                    return 1L << i;
+                }
+            }
+            return 0;
+        }
+    }
+
+    private final boolean enabled;
+    private final List<Phase> phases = new ArrayList<>();
+
+    public RunMetrics(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // Starts timing a phase; when metrics are off the phase is still usable but not kept
+    public synchronized Phase startPhase(String name) {
+        Phase phase = new Phase(name);
+        if (enabled) {
+            phases.add(phase);
+        }
+        return phase;
+    }
+
+    // Bytes written over all phases
+    public synchronized long getBytes() {
+        long total = 0;
+        for (Phase phase : phases) {
+            total += phase.bytes.sum();
+        }
+        return total;
+    }
+
+    public synchronized String toJson() {
+        StringBuilder json = new StringBuilder("{\"phases\":[");
+        for (int i = 0; i < phases.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            phases.get(i).appendJson(json);
+        }
+        return json.append("]}").toString();
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+}
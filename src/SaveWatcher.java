@@ -0,0 +1,137 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+// Watches a save directory tree for changes and hands the touched paths over in debounced batches.
+// The game writes a burst of chunk files on every save, so a batch is only delivered once the tree has been quiet
+// for the debounce interval (or the burst has lasted MAX_DELAY_FACTOR intervals). When the watch service drops events
+// the batch is flagged for a full rescan instead.
+public class SaveWatcher implements AutoCloseable {
+    // A continuous stream of writes is still flushed after this many debounce intervals
+    private static final int MAX_DELAY_FACTOR = 10;
+
+    public interface BatchHandler {
+        // Called with the '/'-separated relative paths of created and modified entries; rescan means some events were lost
+        void onBatch(Set<String> changedPaths, boolean rescan) throws IOException;
+    }
+
+    private final Path root;
+    private final long debounceMillis;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> watchedDirs = new HashMap<>();
+    private final Set<String> pendingPaths = new TreeSet<>();
+    private boolean rescanPending;
+
+    public SaveWatcher(File root, long debounceMillis) throws IOException {
+        this.root = root.toPath();
+        this.debounceMillis = debounceMillis;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        registerTree(this.root, false);
+    }
+
+    public int getWatchedDirectoryCount() {
+        return watchedDirs.size();
+    }
+
+    // Blocks until the watched root goes away or the thread is interrupted
+    public void run(BatchHandler handler) throws IOException {
+        try {
+            while (!watchedDirs.isEmpty()) {
+                WatchKey key = pendingPaths.isEmpty() && !rescanPending ? watchService.take() : null;
+                long firstEvent = System.currentTimeMillis();
+                // Keep collecting until the tree has been quiet for a whole debounce interval
+                while (key != null || (key = watchService.poll(debounceMillis, TimeUnit.MILLISECONDS)) != null) {
+                    processEvents(key);
+                    key = null;
+                    if (System.currentTimeMillis() - firstEvent >= debounceMillis * MAX_DELAY_FACTOR) {
+                        break;
+                    }
+                }
+                if (!pendingPaths.isEmpty() || rescanPending) {
+                    Set<String> batch = new TreeSet<>(pendingPaths);
+                    boolean rescan = rescanPending;
+                    pendingPaths.clear();
+                    rescanPending = false;
+                    handler.onBatch(batch, rescan);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // Closed from another thread; stop watching
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+    private void processEvents(WatchKey key) throws IOException {
+        Path dir = watchedDirs.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                rescanPending = true;
+                continue;
+            }
+            if (dir == null || event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                // Backups keep files the game has deleted, so removals need no work
+                continue;
+            }
+            Path child = dir.resolve((Path) event.context());
+            if (child.getFileName().toString().equals(BackupManifest.METADATA_DIR)) {
+                continue;
+            }
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                // Files may have landed in the new directory before it was registered
+                try {
+                    registerTree(child, true);
+                } catch (NoSuchFileException e) {
+                    // Removed again before we got to it
+                }
+            } else {
+                pendingPaths.add(FileWalker.relativize(root, child));
+            }
+        }
+        if (!key.reset()) {
+            watchedDirs.remove(key);
+        }
+    }
+
+    // Registers a directory and all its subdirectories; with addEntries, everything found is also queued for backup
+    private void registerTree(Path dir, boolean addEntries) throws IOException {
+        FileWalker.walk(dir.toFile(), new FileWalker.Visitor() {
+            @Override
+            public boolean visitDirectory(Path subDir, String relativePath, BasicFileAttributes attrs) throws IOException {
+                watchedDirs.put(subDir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE), subDir);
+                if (addEntries) {
+                    pendingPaths.add(FileWalker.relativize(root, subDir));
+                }
+                return true;
+            }
+
+            @Override
+            public void visitFile(Path file, String relativePath, BasicFileAttributes attrs) {
+                if (addEntries) {
+                    pendingPaths.add(FileWalker.relativize(root, file));
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,233 @@
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Deduplicated backup format: file contents live once in a shared object store keyed by their SHA-256,
+// and every snapshot is just a manifest mapping relative paths to sizes, mtimes and content hashes.
+//
+// Layout:
+//   <store>/objects/ab/abcdef...   blobs, named by content hash
+//   <store>/snapshots/<id>.tsv     one BackupManifest per snapshot, ids counting up from 1
+//   <store>/lock                   locked by a backup while it writes a snapshot and by prune while it deletes objects
+public class SnapshotStore {
+    private static final String OBJECTS_DIR = "objects";
+    private static final String SNAPSHOTS_DIR = "snapshots";
+    private static final String SNAPSHOT_SUFFIX = ".tsv";
+    private static final String IN_PROGRESS_SUFFIX = SNAPSHOT_SUFFIX + ".inprogress";
+    private static final String LOCK_FILE = "lock";
+
+    private final File storeDir;
+    private final File objectsDir;
+    private final File snapshotsDir;
+    private final AtomicInteger blobsWritten = new AtomicInteger();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicInteger blobsRemoved = new AtomicInteger();
+    private final AtomicLong bytesRemoved = new AtomicLong();
+
+    public SnapshotStore(File storeDir) {
+        this.storeDir = storeDir;
+        this.objectsDir = new File(storeDir, OBJECTS_DIR);
+        this.snapshotsDir = new File(storeDir, SNAPSHOTS_DIR);
+    }
+
+    public File getStoreDir() {
+        return storeDir;
+    }
+
+    // Number of new blobs (and their bytes) written by this instance; everything else was deduplicated
+    public int getBlobsWritten() {
+        return blobsWritten.get();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    public int getBlobsRemoved() {
+        return blobsRemoved.get();
+    }
+
+    public long getBytesRemoved() {
+        return bytesRemoved.get();
+    }
+
+    // Returns the highest snapshot id in the store, or 0 if there are none yet
+    public int getLatestSnapshotId() {
+        List<Integer> ids = getSnapshotIds();
+        return ids.isEmpty() ? 0 : ids.get(ids.size() - 1);
+    }
+
+    // Ids of all snapshots in the store, in ascending order
+    public List<Integer> getSnapshotIds() {
+        return listIds(SNAPSHOT_SUFFIX);
+    }
+
+    // Ids of the snapshots a backup is writing (or an interrupted one left behind); a running backup has only this
+    // marker until its manifest is saved
+    public List<Integer> getInProgressSnapshotIds() {
+        return listIds(IN_PROGRESS_SUFFIX);
+    }
+
+    // Takes the store's lock, waiting while another process holds it. Closing the returned channel releases it.
+    public FileChannel lock() throws IOException {
+        FileChannel channel = openLockFile();
+        try {
+            channel.lock();
+            return channel;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Takes the store's lock if it is free; returns null while a backup holds it
+    public FileChannel tryLock() throws IOException {
+        FileChannel channel = openLockFile();
+        try {
+            if (channel.tryLock() != null) {
+                return channel;
+            }
+        } catch (OverlappingFileLockException e) {
+            // Held by this process
+        }
+        channel.close();
+        return null;
+    }
+
+    public BackupManifest loadSnapshot(int snapshotId) {
+        return BackupManifest.loadFile(getSnapshotFile(snapshotId));
+    }
+
+    public File getSnapshotFile(int snapshotId) {
+        return new File(snapshotsDir, snapshotId + SNAPSHOT_SUFFIX);
+    }
+
+    // Deletes a snapshot manifest; its objects stay until removeUnreferencedBlobs() finds nothing else uses them
+    public void deleteSnapshot(int snapshotId) throws IOException {
+        BackupManifest.deleteFile(getSnapshotFile(snapshotId));
+    }
+
+    // Deletes every object whose hash is not in the given set. Blobs still being written are temporary files next to
+    // the prefix directories, so they are never touched.
+    public void removeUnreferencedBlobs(Set<String> referencedHashes, CopyEngine engine) throws IOException {
+        File[] prefixDirs = objectsDir.listFiles(File::isDirectory);
+        if (prefixDirs == null) {
+            return;
+        }
+        for (File prefixDir : prefixDirs) {
+            File[] blobs = prefixDir.listFiles(File::isFile);
+            for (File blob : blobs != null ? blobs : new File[0]) {
+                if (!referencedHashes.contains(blob.getName())) {
+                    engine.submit(() -> {
+                        long size = blob.length();
+                        if (Files.deleteIfExists(blob.toPath())) {
+                            blobsRemoved.incrementAndGet();
+                            bytesRemoved.addAndGet(size);
+                        }
+                    });
+                }
+            }
+        }
+        engine.awaitCompletion();
+    }
+
+    public File getBlobFile(String hash) {
+        return new File(new File(objectsDir, hash.substring(0, 2)), hash);
+    }
+
+    // Streams a file into the store while hashing it, so the content is read exactly once. With a rate limiter (may be
+    // null) it is streamed in slices that each wait for their share of the byte rate. Returns the content hash.
+    public String putBlob(Path source, RateLimiter limiter) throws IOException {
+        Files.createDirectories(objectsDir.toPath());
+        Path tempPath = Files.createTempFile(objectsDir.toPath(), "blob", ".tmp");
+        try {
+            MessageDigest digest = DigestUtils.getSha256Digest();
+            try (InputStream in = new DigestInputStream(Files.newInputStream(source), digest);
+                 OutputStream out = Files.newOutputStream(tempPath)) {
+                if (limiter == null) {
+                    in.transferTo(out);
+                } else {
+                    byte[] slice = new byte[RateLimiter.SLICE_SIZE];
+                    long start = System.nanoTime();
+                    int read;
+                    while ((read = in.readNBytes(slice, 0, slice.length)) > 0) {
+                        out.write(slice, 0, read);
+                        limiter.consume(read, System.nanoTime() - start, RateLimiter.Transfer.BLOB);
+                        start = System.nanoTime();
+                    }
+                }
+            }
+            String hash = Hex.encodeHexString(digest.digest());
+
+            Path blobPath = getBlobFile(hash).toPath();
+            if (Files.exists(blobPath)) {
+                return hash;
+            }
+            Files.createDirectories(blobPath.getParent());
+            try {
+                long size = Files.size(tempPath);
+                Files.move(tempPath, blobPath, StandardCopyOption.ATOMIC_MOVE);
+                blobsWritten.incrementAndGet();
+                bytesWritten.addAndGet(size);
+            } catch (FileAlreadyExistsException e) {
+                // Another worker stored the same content first
+            }
+            return hash;
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+    }
+
+    private FileChannel openLockFile() throws IOException {
+        Files.createDirectories(storeDir.toPath());
+        return FileChannel.open(new File(storeDir, LOCK_FILE).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    // Helper to list the ids of the snapshot files with the given suffix, in ascending order
+    private List<Integer> listIds(String suffix) {
+        List<Integer> ids = new ArrayList<>();
+        String[] names = snapshotsDir.list();
+        if (names == null) {
+            return ids;
+        }
+        for (String name : names) {
+            if (name.endsWith(suffix)) {
+                try {
+                    ids.add(Integer.parseInt(name.substring(0, name.length() - suffix.length())));
+                } catch (NumberFormatException e) {
+                    // Not a snapshot manifest
+                }
+            }
+        }
+        ids.sort(null);
+        return ids;
+    }
+
+    // Copies a blob out of the store and gives it the recorded mtime
+    public void restoreBlob(String hash, File destFile, long size, long lastModified, RateLimiter limiter) throws IOException {
+        Path blobPath = getBlobFile(hash).toPath();
+        if (!Files.exists(blobPath)) {
+            throw new IOException("Snapshot references missing object " + hash + " for " + destFile.getPath());
+        }
+        FileCopier.copy(blobPath, destFile.toPath(), size, FileTime.fromMillis(lastModified), limiter);
+    }
+}
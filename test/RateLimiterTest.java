@@ -0,0 +1,51 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Feeds the adaptive limiter synthetic slice timings; the limits are off, so it never sleeps and only the back-off
+// logic is exercised. Each run spans several adjust intervals.
+public class RateLimiterTest {
+    private static final int SLICE = RateLimiter.SLICE_SIZE;
+
+    // A steady mix on an idle disk: small files copied whole, full slices of plain copies and of the slower
+    // hashing blob path at their own constant speeds, and short file tails
+    @Test
+    public void steadyRunOnIdleDiskNeverBacksOff() throws IOException {
+        RateLimiter limiter = new RateLimiter(0, 0);
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(1600);
+        while (System.nanoTime() < end) {
+            for (int i = 0; i < 20; i++) {
+                limiter.acquireFile();
+                limiter.consume(4096);
+            }
+            limiter.consume(SLICE, 1_000_000, RateLimiter.Transfer.COPY);
+            limiter.consume(SLICE, 1_100_000, RateLimiter.Transfer.COPY);
+            limiter.consume(20 << 10, 300_000, RateLimiter.Transfer.COPY);
+            limiter.consume(SLICE, 3_000_000, RateLimiter.Transfer.BLOB);
+            limiter.consume(64 << 10, 800_000, RateLimiter.Transfer.DELTA);
+        }
+        assertEquals(0, limiter.getBackoffs());
+        assertTrue(Double.isInfinite(limiter.getBytesPerSecond()));
+    }
+
+    @Test
+    public void risingLatencyBacksOff() throws IOException {
+        RateLimiter limiter = new RateLimiter(0, 0);
+        feedSlices(limiter, 700, 1_000_000);
+        assertEquals(0, limiter.getBackoffs());
+        feedSlices(limiter, 1200, 4_000_000);
+        assertTrue(limiter.getBackoffs() > 0);
+        assertTrue(limiter.getBytesPerSecond() < Double.POSITIVE_INFINITY);
+    }
+
+    private static void feedSlices(RateLimiter limiter, long millis, long nanosPerSlice) throws IOException {
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        while (System.nanoTime() < end) {
+            limiter.consume(SLICE, nanosPerSlice, RateLimiter.Transfer.COPY);
+        }
+    }
+}